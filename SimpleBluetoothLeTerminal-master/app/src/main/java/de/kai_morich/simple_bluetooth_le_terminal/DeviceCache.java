@@ -0,0 +1,74 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * persistent per device address cache of the serial profile resolved on previous connect.
+ * Only a hint, SerialSocket falls back to full service lookup if it does not match.
+ */
+final class DeviceCache {
+
+    static final class Entry {
+        final UUID service;     // also selects the device delegate
+        final UUID read, write; // characteristics
+        final boolean indicate; // read CCCD mode, else notify
+        final int mtu;          // last negotiated
+        final int txPhy;        // after 2M request, 1M if rejected by peer
+
+        Entry(UUID service, UUID read, UUID write, boolean indicate, int mtu, int txPhy) {
+            this.service = service;
+            this.read = read;
+            this.write = write;
+            this.indicate = indicate;
+            this.mtu = mtu;
+            this.txPhy = txPhy;
+        }
+
+        @Override
+        public String toString() {
+            return service + ";" + read + ";" + write + ";" + (indicate ? "i" : "n") + ";" + mtu + ";" + txPhy;
+        }
+
+        static Entry parse(String s) {
+            String[] f = s.split(";");
+            if(f.length != 6)
+                throw new IllegalArgumentException("invalid cache entry " + s);
+            return new Entry(UUID.fromString(f[0]), UUID.fromString(f[1]), UUID.fromString(f[2]),
+                    f[3].equals("i"), Integer.parseInt(f[4]), Integer.parseInt(f[5]));
+        }
+    }
+
+    private static final String TAG = "DeviceCache";
+    private static final String PREFERENCES = "device_cache";
+
+    private final SharedPreferences preferences;
+
+    DeviceCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    Entry get(String address) {
+        String s = preferences.getString(address, null);
+        if(s == null)
+            return null;
+        try {
+            return Entry.parse(s);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "ignore " + e.getMessage());
+            remove(address);
+            return null;
+        }
+    }
+
+    void put(String address, Entry entry) {
+        preferences.edit().putString(address, entry.toString()).apply();
+    }
+
+    void remove(String address) {
+        preferences.edit().remove(address).apply();
+    }
+}
@@ -0,0 +1,109 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * deliver received chunks to the UI thread at most once per display frame
+ *   - producer (GATT callback thread) passes chunks through the bounded lock-free pipeline sink,
+ *     sink overflow drops data of the UI only, not of other sinks
+ *   - the first chunk after a delivery posts one Choreographer frame callback (1),
+ *     posting again is allowed as soon as the frame callback started consuming (2)
+ *   - pooled buffers are copied and released in the UI thread
+ *   - the batch is reused for each frame, so the consumer must not keep it after onBatch() returns
+ *   - after each batch the DrainListener gets the time from the first chunk until it was consumed,
+ *     for credit based flow control
+ *
+ * UI cost then depends on the frame rate, not on the notification rate.
+ */
+final class FrameDispatcher implements Choreographer.FrameCallback {
+
+    interface Consumer {
+        void onBatch(ArrayDeque<byte[]> datas);
+    }
+
+    interface DrainListener {
+        void onDrained(long waitNanos);
+    }
+
+    private final Choreographer choreographer;
+    private final Consumer consumer;
+    private Pipeline.Sink sink;
+    private volatile DrainListener drainListener;
+    private long scheduledNanos; // first chunk after delivery, passed to UI thread by postFrameCallback
+    private final ArrayDeque<BufferPool.Buffer> buffers = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> batch = new ArrayDeque<>();
+    private final AtomicBoolean posted = new AtomicBoolean();
+    private volatile long batches, chunks, maxChunks; // only written by UI thread
+
+    /**
+     * has to be created in the UI thread, as Choreographer is per Looper
+     */
+    FrameDispatcher(Consumer consumer) {
+        this.choreographer = Choreographer.getInstance();
+        this.consumer = consumer;
+    }
+
+    /**
+     * set before first schedule()
+     */
+    void setSink(Pipeline.Sink sink) {
+        this.sink = sink;
+    }
+
+    void setDrainListener(DrainListener listener) {
+        this.drainListener = listener;
+    }
+
+    /**
+     * producer only, after offer to sink
+     */
+    void schedule() {
+        if(posted.compareAndSet(false, true)) { // (1)
+            scheduledNanos = System.nanoTime();
+            choreographer.postFrameCallback(this); // thread safe, schedules vsync in the Looper thread
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long scheduled = scheduledNanos; // before (2), the next schedule() overwrites it
+        posted.set(false); // (2)
+        sink.drainTo(buffers);
+        for(BufferPool.Buffer buffer : buffers) {
+            batch.add(buffer.toByteArray());
+            buffer.release();
+        }
+        buffers.clear();
+        int size = batch.size();
+        if(size == 0)
+            return;
+        batches++;
+        chunks += size;
+        if(size > maxChunks)
+            maxChunks = size;
+        try {
+            consumer.onBatch(batch);
+        } finally {
+            batch.clear();
+        }
+        DrainListener drainListener = this.drainListener;
+        if(drainListener != null)
+            drainListener.onDrained(System.nanoTime() - scheduled);
+    }
+
+    long getBatches() {
+        return batches;
+    }
+    long getChunks() {
+        return chunks;
+    }
+    long getMaxChunks() {
+        return maxChunks;
+    }
+    long getOverflows() {
+        return sink.getDropped();
+    }
+}
@@ -0,0 +1,237 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * serialize GATT operations of one connection
+ *   - Android allows only one outstanding operation, others are rejected as busy and retried here
+ *   - pending operations start in priority order, unless one is past its deadline
+ *   - data writes are started by SerialEngine.writeNext() via startWrite(), up to the write window,
+ *     but only while no other operation is outstanding or due
+ *   - latency from start to completion callback is recorded per operation
+ */
+final class GattScheduler {
+
+    enum Op {  // in priority order
+        Mtu(5000), Descriptor(5000), Priority(0), Phy(1000), CreditWrite(5000), Write(0), Rssi(1000);
+
+        final int timeout; // ms until completion callback, 0 = no callback
+
+        Op(int timeout) { this.timeout = timeout; }
+    }
+
+    interface Request {
+        boolean start(); // false if busy or failed
+    }
+
+    interface Callback {
+        void onOperationFailed(Op op, boolean timeout);
+        void onWritable(); // operation finished, data writes can continue
+    }
+
+    private static final class Pending {
+        final Op op;
+        final Request request;
+        final long deadlineNanos;
+        int retries;
+
+        Pending(Op op, Request request, long deadlineNanos) {
+            this.op = op;
+            this.request = request;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private static final String TAG = "GattScheduler";
+    private static final int MAX_RETRIES = 20;
+    private static final int RETRY_DELAY = 10; // ms
+    private static final int MAX_WRITE_WINDOW = 64;
+
+    private final Handler handler;
+    private final Callback callback;
+    private final ArrayList<Pending> pending = new ArrayList<>();
+    private final LatencyHistogram[] latency;
+    private final long[] writeStarts = new long[MAX_WRITE_WINDOW]; // start time of writes in flight
+    private final Runnable runRunnable = this::run;
+    private final Runnable timeoutRunnable = this::timeout;
+    private int writeFirst, writesInFlight;
+    private Pending current;
+    private long currentStartNanos;
+    private boolean starting;
+
+    GattScheduler(Handler handler, Callback callback) {
+        this.handler = handler;
+        this.callback = callback;
+        latency = new LatencyHistogram[Op.values().length];
+        for(int i=0; i<latency.length; i++)
+            latency[i] = new LatencyHistogram();
+    }
+
+    /**
+     * @param deadlineMillis start before data writes after this time, even if lower priority
+     */
+    void submit(Op op, int deadlineMillis, Request request) {
+        synchronized (this) {
+            pending.add(new Pending(op, request, System.nanoTime() + deadlineMillis * 1_000_000L));
+        }
+        run();
+    }
+
+    synchronized boolean isPending(Op op) {
+        if(current != null && current.op == op)
+            return true;
+        for(Pending p : pending)
+            if(p.op == op)
+                return true;
+        return false;
+    }
+
+    /**
+     * called before a data write is started
+     * @return false if another operation is outstanding or due
+     */
+    synchronized boolean startWrite() {
+        if(current != null || starting || writesInFlight == MAX_WRITE_WINDOW)
+            return false;
+        long now = System.nanoTime();
+        for(Pending p : pending) {
+            if(p.op.ordinal() < Op.Write.ordinal() || now - p.deadlineNanos >= 0) {
+                if(writesInFlight == 0)
+                    handler.post(runRunnable);
+                return false;
+            }
+        }
+        writeStarts[(writeFirst+writesInFlight) % MAX_WRITE_WINDOW] = now;
+        writesInFlight++;
+        return true;
+    }
+
+    /**
+     * data write after startWrite() was rejected
+     */
+    synchronized void writeNotStarted() {
+        if(writesInFlight > 0)
+            writesInFlight--;
+        if(writesInFlight == 0 && !pending.isEmpty())
+            handler.post(runRunnable);
+    }
+
+    /**
+     * called from GATT callbacks. Completions not matching the outstanding operation,
+     * like peer initiated MTU or PHY updates, are ignored.
+     */
+    void complete(Op op) {
+        synchronized (this) {
+            long now = System.nanoTime();
+            if(op == Op.Write) {
+                if(writesInFlight == 0)
+                    return;
+                latency[op.ordinal()].record(now - writeStarts[writeFirst]);
+                writeFirst = (writeFirst+1) % MAX_WRITE_WINDOW;
+                writesInFlight--;
+                if(writesInFlight > 0 || pending.isEmpty())
+                    return; // SerialEngine continues with writeNext()
+            } else {
+                if(current == null || current.op != op)
+                    return;
+                latency[op.ordinal()].record(now - currentStartNanos);
+                current = null;
+                handler.removeCallbacks(timeoutRunnable);
+            }
+        }
+        run();
+    }
+
+    LatencyHistogram getLatency(Op op, LatencyHistogram copy) {
+        synchronized (this) {
+            latency[op.ordinal()].copyTo(copy);
+        }
+        return copy;
+    }
+
+    synchronized void clear() {
+        pending.clear();
+        current = null;
+        writesInFlight = 0;
+        handler.removeCallbacks(runRunnable);
+        handler.removeCallbacks(timeoutRunnable);
+    }
+
+    private void run() {
+        Pending p;
+        synchronized (this) {
+            if(starting || current != null || writesInFlight > 0)
+                return;
+            p = select();
+            if(p != null) {
+                pending.remove(p);
+                current = p;
+                currentStartNanos = System.nanoTime();
+                starting = true;
+            }
+        }
+        if(p == null) {
+            callback.onWritable();
+            return;
+        }
+        boolean started = p.request.start();
+        boolean failed = false, next = false;
+        synchronized (this) {
+            starting = false;
+            if(!started) {
+                current = null;
+                if(++p.retries <= MAX_RETRIES) {
+                    Log.d(TAG, p.op + " busy, retry " + p.retries);
+                    pending.add(p);
+                    handler.postDelayed(runRunnable, RETRY_DELAY);
+                } else {
+                    failed = true;
+                    next = true;
+                }
+            } else if(current == p) { // else already completed
+                if(p.op.timeout == 0) {
+                    latency[p.op.ordinal()].record(System.nanoTime() - currentStartNanos);
+                    current = null;
+                    next = true;
+                } else {
+                    handler.postDelayed(timeoutRunnable, p.op.timeout);
+                }
+            }
+        }
+        if(failed)
+            callback.onOperationFailed(p.op, false);
+        if(next)
+            run();
+    }
+
+    private void timeout() {
+        Pending p;
+        synchronized (this) {
+            p = current;
+            if(p == null || starting)
+                return;
+            current = null;
+        }
+        Log.d(TAG, p.op + " timeout");
+        callback.onOperationFailed(p.op, true);
+        run();
+    }
+
+    /**
+     * highest priority operation past deadline, else highest priority
+     */
+    private Pending select() {
+        Pending best = null, due = null;
+        long now = System.nanoTime();
+        for(Pending p : pending) {
+            if(best == null || p.op.ordinal() < best.op.ordinal())
+                best = p;
+            if(now - p.deadlineNanos >= 0 && (due == null || p.op.ordinal() < due.op.ordinal()))
+                due = p;
+        }
+        return due != null ? due : best;
+    }
+}
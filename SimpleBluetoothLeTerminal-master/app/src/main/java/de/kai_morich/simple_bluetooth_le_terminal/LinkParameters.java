@@ -0,0 +1,40 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * negotiated BLE link parameters, reported by SerialListener.onSerialLinkParameters
+ */
+final class LinkParameters {
+
+    final int mtu;
+    final int txPhy, rxPhy;       // BluetoothDevice.PHY_LE_*
+    final int intervalMicros;     // 0 = not reported by this Android version
+    final int latency;            // connection events the peripheral may skip
+    final int priority;           // requested BluetoothGatt.CONNECTION_PRIORITY_*
+
+    LinkParameters(int mtu, int txPhy, int rxPhy, int intervalMicros, int latency, int priority) {
+        this.mtu = mtu;
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        this.intervalMicros = intervalMicros;
+        this.latency = latency;
+        this.priority = priority;
+    }
+
+    private static String phyName(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M: return "1M";
+            case BluetoothDevice.PHY_LE_2M: return "2M";
+            default: return "coded";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "mtu " + mtu
+                + ", phy " + phyName(txPhy) + "/" + phyName(rxPhy)
+                + ", interval " + (intervalMicros == 0 ? "?" : (intervalMicros / 1000f) + " ms")
+                + ", latency " + latency;
+    }
+}
@@ -1,28 +1,24 @@
 package de.kai_morich.simple_bluetooth_le_terminal;
-import android.bluetooth.BluetoothGatt;
 import android.os.Handler;
-import android.os.Looper;
 
 public class PeriodicRssiReader {
-    private BluetoothGatt bluetoothGatt;
+    private SerialSocket socket;
     private Handler handler;
     private Runnable readRssiRunnable;
-    private boolean isReadingRssi;
+    private volatile boolean isReadingRssi; // stopped from main thread
 
     private int curr_rssi;
 
-    public PeriodicRssiReader(BluetoothGatt gatt) {
-        this.bluetoothGatt = gatt;
-        this.handler = new Handler(Looper.getMainLooper());
+    public PeriodicRssiReader(SerialSocket socket) {
+        this.socket = socket;
+        this.handler = SerialIo.getHandler(); // RSSI reads not delayed by UI
         this.curr_rssi = -10;
         this.readRssiRunnable = new Runnable() {
-            @SuppressWarnings("MissingPermission")
             @Override
             public void run() {
-                if (bluetoothGatt != null && isReadingRssi) {
-                    bluetoothGatt.readRemoteRssi();
-                    // Schedule next read after a delay (adjust as needed)
-                    handler.postDelayed(this, 100); // Read RSSI every 1 second
+                if (socket != null && isReadingRssi) {
+                    socket.readRssi(); // queued behind other GATT operations
+                    handler.postDelayed(this, 100); // Read RSSI every 100 ms
                 }
             }
         };
@@ -38,13 +34,9 @@ public class PeriodicRssiReader {
         handler.removeCallbacks(readRssiRunnable);
     }
 
-    public void setBluetoothGatt(BluetoothGatt gatt) {
-        this.bluetoothGatt = gatt;
+    public void setSocket(SerialSocket socket) {
+        this.socket = socket;
     }
 
-    private void handleUpdatedRssi(int rssiValue) {
-        // Process the updated RSSI value here
-        System.out.println("Updated RSSI: " + rssiValue);
-    }
     public int getRssi() {return curr_rssi;}
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * serial profiles by service UUID, resolved with one hash lookup per discovered service.
+ *
+ * Built-in profiles can be extended or overridden by the optional asset serial_profiles.txt,
+ * one SerialProfile per line, empty lines and lines starting with # are ignored.
+ */
+final class ProfileRegistry {
+
+    static final String ASSET = "serial_profiles.txt";
+
+    private static final String TAG = "ProfileRegistry";
+
+    private static final UUID BLUETOOTH_LE_CC254X_SERVICE = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
+    private static final UUID BLUETOOTH_LE_CC254X_CHAR_RW = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
+    private static final UUID BLUETOOTH_LE_NRF_SERVICE    = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID BLUETOOTH_LE_NRF_CHAR_RW2   = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e"); // read on microbit, write on adafruit
+    private static final UUID BLUETOOTH_LE_NRF_CHAR_RW3   = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID BLUETOOTH_LE_MICROCHIP_SERVICE    = UUID.fromString("49535343-FE7D-4AE5-8FA9-9FAFD205E455");
+    private static final UUID BLUETOOTH_LE_MICROCHIP_CHAR_RW    = UUID.fromString("49535343-1E4D-4BD9-BA61-23C647249616");
+    private static final UUID BLUETOOTH_LE_MICROCHIP_CHAR_W     = UUID.fromString("49535343-8841-43F4-A8D4-ECBE34729BB3");
+
+    // https://play.google.com/store/apps/details?id=com.telit.tiosample
+    // https://www.telit.com/wp-content/uploads/2017/09/TIO_Implementation_Guide_r6.pdf
+    private static final UUID BLUETOOTH_LE_TIO_SERVICE          = UUID.fromString("0000FEFB-0000-1000-8000-00805F9B34FB");
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_TX          = UUID.fromString("00000001-0000-1000-8000-008025000000"); // WNR
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_RX          = UUID.fromString("00000002-0000-1000-8000-008025000000"); // N
+
+    private static ProfileRegistry instance;
+
+    private final HashMap<UUID, SerialProfile> profiles = new HashMap<>();
+
+    private ProfileRegistry() {
+        add(new SerialProfile("cc254x uart", BLUETOOTH_LE_CC254X_SERVICE, BLUETOOTH_LE_CC254X_CHAR_RW, BLUETOOTH_LE_CC254X_CHAR_RW,
+                SerialProfile.WriteType.Auto, SerialProfile.FlowControl.None));
+        add(new SerialProfile("microchip uart", BLUETOOTH_LE_MICROCHIP_SERVICE, BLUETOOTH_LE_MICROCHIP_CHAR_RW, BLUETOOTH_LE_MICROCHIP_CHAR_W,
+                SerialProfile.WriteType.Auto, SerialProfile.FlowControl.None));
+        add(new SerialProfile("nrf uart", BLUETOOTH_LE_NRF_SERVICE, BLUETOOTH_LE_NRF_CHAR_RW3, BLUETOOTH_LE_NRF_CHAR_RW2,
+                SerialProfile.WriteType.Auto, SerialProfile.FlowControl.None));
+        add(new SerialProfile("telit tio 2.0", BLUETOOTH_LE_TIO_SERVICE, BLUETOOTH_LE_TIO_CHAR_RX, BLUETOOTH_LE_TIO_CHAR_TX,
+                SerialProfile.WriteType.NoResponse, SerialProfile.FlowControl.TelitCredits));
+    }
+
+    /**
+     * built-in profiles + asset, loaded on first use
+     */
+    static synchronized ProfileRegistry getInstance(Context context) {
+        if(instance == null) {
+            instance = new ProfileRegistry();
+            try (InputStream is = context.getAssets().open(ASSET)) {
+                Log.d(TAG, "loaded " + instance.load(is) + " profiles from " + ASSET);
+            } catch (FileNotFoundException ignored) {
+                // optional
+            } catch (IOException e) {
+                Log.w(TAG, "loading " + ASSET + " failed", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * later profiles override earlier ones with same service
+     */
+    synchronized void add(SerialProfile profile) {
+        profiles.put(profile.service, profile);
+    }
+
+    synchronized SerialProfile get(UUID service) {
+        return profiles.get(service);
+    }
+
+    /**
+     * invalid lines are logged and skipped
+     * @return number of added profiles
+     */
+    int load(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        int count = 0;
+        String line;
+        while((line = reader.readLine()) != null) {
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+            try {
+                add(SerialProfile.parse(line));
+                count++;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, e.getMessage());
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,27 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * process wide "serial-io" thread for GATT operation scheduling, write flushing, reconnect timers,
+ * RSSI polling and telemetry, so a slow UI frame does not delay outgoing data.
+ * Only rendered updates are posted to the main thread.
+ */
+final class SerialIo {
+
+    private static Handler handler;
+
+    private SerialIo() {
+    }
+
+    static synchronized Handler getHandler() {
+        if(handler == null) {
+            HandlerThread thread = new HandlerThread("serial-io", Process.THREAD_PRIORITY_DISPLAY); // above UI background work
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+}
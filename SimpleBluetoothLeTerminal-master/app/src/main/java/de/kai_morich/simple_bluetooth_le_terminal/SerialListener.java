@@ -1,11 +1,15 @@
-package de.kai_morich.simple_bluetooth_le_terminal;
-
-import java.util.ArrayDeque;
-
-interface SerialListener {
-    void onSerialConnect      ();
-    void onSerialConnectError (Exception e);
-    void onSerialRead         (byte[] data);                // socket -> service
-    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread
-    void onSerialIoError      (Exception e);
-}
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayDeque;
+
+interface SerialListener {
+    void onSerialConnect      ();
+    void onSerialConnectError (Exception e);
+    void onSerialLinkParameters(LinkParameters params);     // after connect and when changed
+    void onSerialRead         (byte[] data);                // socket -> service
+    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread, once per frame, only valid during call
+    void onSerialIoError      (Exception e);
+    void onSerialLinkLost     (Exception e);                // connection lost, service reconnects
+    void onSerialReconnect    (int attempts, int millis);   // service -> UI thread
+    void onSerialBacklog      (long spilledBytes, long droppedBytes); // service -> UI thread in attach(), before recent data
+}
@@ -0,0 +1,64 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * serial profile of one GATT service: read/write characteristics, write type and flow control.
+ * Read and write characteristic are the same for single characteristic profiles like cc254x.
+ */
+final class SerialProfile {
+
+    enum WriteType {
+        Auto,       // characteristic default, WRITE_TYPE_NO_RESPONSE if pipelined and supported
+        Response,   // always WRITE_TYPE_DEFAULT, never pipelined
+        NoResponse  // always WRITE_TYPE_NO_RESPONSE
+    }
+
+    enum FlowControl {
+        None,
+        TelitCredits // TIO 2.0 credit characteristics in same service
+    }
+
+    final String name;
+    final UUID service;
+    final UUID read, write;
+    final WriteType writeType;
+    final FlowControl flowControl;
+
+    SerialProfile(String name, UUID service, UUID read, UUID write, WriteType writeType, FlowControl flowControl) {
+        this.name = name;
+        this.service = service;
+        this.read = read;
+        this.write = write;
+        this.writeType = writeType;
+        this.flowControl = flowControl;
+    }
+
+    @Override
+    public String toString() {
+        return name + ";" + service + ";" + read + ";" + write + ";"
+                + writeType.name().toLowerCase(Locale.US) + ";" + flowControl.name().toLowerCase(Locale.US);
+    }
+
+    /**
+     * format as toString(): name;service;read;write[;writeType[;flowControl]]
+     * with writeType auto|response|noresponse and flowControl none|telitcredits
+     */
+    static SerialProfile parse(String s) {
+        String[] f = s.split(";");
+        if(f.length < 4 || f.length > 6 || f[0].trim().isEmpty())
+            throw new IllegalArgumentException("invalid profile " + s);
+        WriteType writeType = f.length > 4 ? parseEnum(WriteType.values(), f[4]) : WriteType.Auto;
+        FlowControl flowControl = f.length > 5 ? parseEnum(FlowControl.values(), f[5]) : FlowControl.None;
+        return new SerialProfile(f[0].trim(), UUID.fromString(f[1].trim()), UUID.fromString(f[2].trim()), UUID.fromString(f[3].trim()),
+                writeType, flowControl);
+    }
+
+    private static <T extends Enum<T>> T parseEnum(T[] values, String s) {
+        for(T value : values)
+            if(value.name().equalsIgnoreCase(s.trim()))
+                return value;
+        throw new IllegalArgumentException("invalid value " + s);
+    }
+}
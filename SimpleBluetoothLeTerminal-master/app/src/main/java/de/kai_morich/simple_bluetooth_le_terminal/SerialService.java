@@ -1,279 +1,831 @@
-package de.kai_morich.simple_bluetooth_le_terminal;
-
-import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.app.Service;
-import android.content.Context;
-import android.content.Intent;
-import android.os.Binder;
-import android.os.Build;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Looper;
-
-import androidx.annotation.Nullable;
-import androidx.core.app.NotificationCompat;
-
-import java.io.IOException;
-import java.util.ArrayDeque;
-
-/**
- * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
- */
-public class SerialService extends Service implements SerialListener {
-
-    class SerialBinder extends Binder {
-        SerialService getService() { return SerialService.this; }
-    }
-
-    private enum QueueType {Connect, ConnectError, Read, IoError}
-
-    private static class QueueItem {
-        QueueType type;
-        ArrayDeque<byte[]> datas;
-        Exception e;
-
-        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
-        QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
-        QueueItem(QueueType type, ArrayDeque<byte[]> datas) { this.type=type; this.datas=datas; }
-
-        void init() { datas = new ArrayDeque<>(); }
-        void add(byte[] data) { datas.add(data); }
-    }
-
-    private final Handler mainLooper;
-    private final IBinder binder;
-    private final ArrayDeque<QueueItem> queue1, queue2;
-    private final QueueItem lastRead;
-
-    private SerialSocket socket;
-    private SerialListener listener;
-    private boolean connected;
-
-    /**
-     * Lifecylce
-     */
-    public SerialService() {
-        mainLooper = new Handler(Looper.getMainLooper());
-        binder = new SerialBinder();
-        queue1 = new ArrayDeque<>();
-        queue2 = new ArrayDeque<>();
-        lastRead = new QueueItem(QueueType.Read);
-    }
-
-    @Override
-    public void onDestroy() {
-        cancelNotification();
-        disconnect();
-        super.onDestroy();
-    }
-
-    @Nullable
-    @Override
-    public IBinder onBind(Intent intent) {
-        return binder;
-    }
-
-    /**
-     * Api
-     */
-    public void connect(SerialSocket socket) throws IOException {
-        socket.connect(this);
-        this.socket = socket;
-        connected = true;
-    }
-
-    public void disconnect() {
-        connected = false; // ignore data,errors while disconnecting
-        cancelNotification();
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
-        }
-    }
-
-    public void write(byte[] data) throws IOException {
-        if(!connected)
-            throw new IOException("not connected");
-        socket.write(data);
-    }
-
-    public void attach(SerialListener listener) {
-        if(Looper.getMainLooper().getThread() != Thread.currentThread())
-            throw new IllegalArgumentException("not in main thread");
-        cancelNotification();
-        // use synchronized() to prevent new items in queue2
-        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
-        synchronized (this) {
-            this.listener = listener;
-        }
-        for(QueueItem item : queue1) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
-            }
-        }
-        for(QueueItem item : queue2) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
-            }
-        }
-        queue1.clear();
-        queue2.clear();
-    }
-
-    public void detach() {
-        if(connected)
-            createNotification();
-        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
-        // items occurring later, will be moved directly to queue2
-        // detach() and mainLooper.post run in the main thread, so all items are caught
-        listener = null;
-    }
-
-    private void createNotification() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            NotificationChannel nc = new NotificationChannel(Constants.NOTIFICATION_CHANNEL, "Background service", NotificationManager.IMPORTANCE_LOW);
-            nc.setShowBadge(false);
-            NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-            nm.createNotificationChannel(nc);
-        }
-        Intent disconnectIntent = new Intent()
-                .setAction(Constants.INTENT_ACTION_DISCONNECT);
-        Intent restartIntent = new Intent()
-                .setClassName(this, Constants.INTENT_CLASS_MAIN_ACTIVITY)
-                .setAction(Intent.ACTION_MAIN)
-                .addCategory(Intent.CATEGORY_LAUNCHER);
-        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
-        PendingIntent disconnectPendingIntent = PendingIntent.getBroadcast(this, 1, disconnectIntent, flags);
-        PendingIntent restartPendingIntent = PendingIntent.getActivity(this, 1, restartIntent,  flags);
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIFICATION_CHANNEL)
-                .setSmallIcon(R.drawable.ic_notification)
-                .setColor(getResources().getColor(R.color.colorPrimary))
-                .setContentTitle(getResources().getString(R.string.app_name))
-                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
-                .setContentIntent(restartPendingIntent)
-                .setOngoing(true)
-                .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
-        // @drawable/ic_notification created with Android Studio -> New -> Image Asset using @color/colorPrimaryDark as background color
-        // Android < API 21 does not support vectorDrawables in notifications, so both drawables used here, are created as .png instead of .xml
-        Notification notification = builder.build();
-        startForeground(Constants.NOTIFY_MANAGER_START_FOREGROUND_SERVICE, notification);
-    }
-
-    private void cancelNotification() {
-        stopForeground(true);
-    }
-
-    /**
-     * SerialListener
-     */
-    public void onSerialConnect() {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnect();
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Connect));
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.Connect));
-                }
-            }
-        }
-    }
-
-    public void onSerialConnectError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnectError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, e));
-                    disconnect();
-                }
-            }
-        }
-    }
-
-    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
-
-    /**
-     * reduce number of UI updates by merging data chunks.
-     * Data can arrive at hundred chunks per second, but the UI can only
-     * perform a dozen updates if receiveText already contains much text.
-     *
-     * On new data inform UI thread once (1).
-     * While not consumed (2), add more data (3).
-     */
-    public void onSerialRead(byte[] data) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    boolean first;
-                    synchronized (lastRead) {
-                        first = lastRead.datas.isEmpty(); // (1)
-                        lastRead.add(data); // (3)
-                    }
-                    if(first) {
-                        mainLooper.post(() -> {
-                            ArrayDeque<byte[]> datas;
-                            synchronized (lastRead) {
-                                datas = lastRead.datas;
-                                lastRead.init(); // (2)
-                            }
-                            if (listener != null) {
-                                listener.onSerialRead(datas);
-                            } else {
-                                queue1.add(new QueueItem(QueueType.Read, datas));
-                            }
-                        });
-                    }
-                } else {
-                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
-                        queue2.add(new QueueItem(QueueType.Read));
-                    queue2.getLast().add(data);
-                }
-            }
-        }
-    }
-
-    public void onSerialIoError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, e));
-                    disconnect();
-                }
-            }
-        }
-    }
-
-}
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * create notification and queue serial data while activity is not in the foreground
+ * use listener chain: SerialSocket -> Session -> UI fragment
+ * reconnect after link loss, with exponential backoff between failed attempts
+ *
+ * reconnect timers and follower handling run in the SerialIo thread,
+ * only events for the UI are posted to the main thread
+ *
+ * while detached, at most BACKLOG_MEMORY bytes of read data are kept in queue2. Older data is moved
+ * to a SpillFile and only read when the UI asks for it with readBacklogPage() after attach().
+ * Spill file writes run in the SerialIo thread, outside of the lock on this
+ *
+ * one primary session, connected by the UI and forwarding its events to the UI,
+ * plus follower sessions, that only receive broadcast writes
+ */
+public class SerialService extends Service {
+
+    class SerialBinder extends Binder {
+        SerialService getService() { return SerialService.this; }
+    }
+
+    private enum QueueType {Connect, ConnectError, LinkParameters, Read, IoError, LinkLost, Reconnect}
+
+    private static class QueueItem {
+        QueueType type;
+        ArrayDeque<byte[]> datas;
+        Exception e;
+        LinkParameters params;
+        int attempts, millis;
+
+        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
+        QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
+        QueueItem(QueueType type, ArrayDeque<byte[]> datas) { this.type=type; this.datas=datas; }
+        QueueItem(QueueType type, LinkParameters params) { this.type=type; this.params=params; }
+        QueueItem(QueueType type, int attempts, int millis) { this.type=type; this.attempts=attempts; this.millis=millis; }
+
+        void init() { datas = new ArrayDeque<>(); }
+        void add(byte[] data) { datas.add(data); }
+        byte[] poll() { return datas.poll(); }
+    }
+
+    private static final String TAG = "SerialService";
+    private static final int UI_SINK_CAPACITY = 1024;     // chunks or frames, oldest dropped if UI falls behind
+    private static final int PIPELINE_BUFFER_SIZE = 1024; // bytes, also max frame size
+    private static final int PIPELINE_BUFFERS = 256;      // pooled
+    private static final int BACKLOG_MEMORY = 256 * 1024; // bytes of read data in queue2, older data is spilled to file
+    private static final int SPILL_PAGE_SIZE = 64 * 1024;
+    private static final long SPILL_MAX_SIZE = 64L * 1024 * 1024; // later data is dropped
+    private static final String SPILL_FILE = "backlog.bin";
+    private static final int RECORDER_BUFFER_SIZE = 64 * 1024;
+    private static final long RECORDER_FILE_SIZE = 16L * 1024 * 1024; // rotated
+    private static final int RECORDER_FILES = 8;
+    private static final int RECONNECT_DELAY_MIN = 250;  // ms, doubled after each failed attempt
+    private static final int RECONNECT_DELAY_MAX = 8000;
+    private static final int RECONNECT_ATTEMPTS = 8;     // without background reconnect
+    private static final int BROADCASTS_TRACKED = 64;    // for skew, completion is checked lazily
+
+    private final Handler mainLooper;
+    private final Handler ioHandler;
+    private final IBinder binder;
+    private final ArrayDeque<QueueItem> queue1, queue2;
+    private final FrameDispatcher readDispatcher;
+    private final Pipeline readPipeline;
+    private final Pipeline.Sink uiSink;
+    private SpillFile spill;
+    private int queuedReadBytes; // in queue2, guarded by this
+    private long droppedReadBytes; // guarded by this
+    private long spillingBytes;    // passed to SerialIo thread, not yet in spill, guarded by this
+    private int backlogPage;       // next page returned by readBacklogPage(), counting down, -1 = not started
+
+    private final CopyOnWriteArrayList<Session> sessions;
+    private final ArrayDeque<WriteHandle[]> broadcasts;
+    private volatile SerialListener listener;
+    private volatile Benchmark benchmark; // consumes primary device data while running
+    private SessionRecorder recorder;     // primary device traffic, main thread only
+    private volatile SessionReplay replay; // instead of primary device
+    private boolean reconnectEnabled = true;
+    private boolean backgroundReconnect;
+    private long skewNanos, skewMaxNanos, skewCount;
+
+    /**
+     * connection to one device, receives the SerialSocket events
+     */
+    private class Session implements SerialListener {
+        final SerialSocket socket; // null for replay, which only calls primary connect/read/error events
+        final boolean primary;
+        final Runnable reconnectRunnable = this::reconnect;
+        volatile boolean connected;
+        volatile boolean reconnecting;
+        int reconnectAttempts;
+        long reconnectStartNanos;
+        long lastWrittenBytes, lastReadBytes, lastStatsNanos;
+
+        Session(SerialSocket socket, boolean primary) {
+            this.socket = socket;
+            this.primary = primary;
+        }
+
+        void disconnect() {
+            connected = false; // ignore data,errors while disconnecting
+            reconnecting = false;
+            ioHandler.removeCallbacks(reconnectRunnable);
+            if(socket != null)
+                socket.disconnect();
+        }
+
+        SessionStats stats(long now) {
+            long written = socket.getWrittenBytes(), read = socket.getReadBytes();
+            long elapsed = now - lastStatsNanos;
+            SessionStats stats = new SessionStats(socket.getName(), primary, connected && !reconnecting,
+                    elapsed > 0 ? (written - lastWrittenBytes) * 1_000_000_000L / elapsed : 0,
+                    elapsed > 0 ? (read - lastReadBytes) * 1_000_000_000L / elapsed : 0);
+            lastWrittenBytes = written;
+            lastReadBytes = read;
+            lastStatsNanos = now;
+            return stats;
+        }
+
+        /*
+         * Reconnect, runs in SerialIo thread
+         */
+        private void onLinkLost(Exception e) {
+            if(!connected)
+                return;
+            reconnectAttempts = 0;
+            reconnectStartNanos = System.nanoTime();
+            if(primary)
+                post(new QueueItem(QueueType.LinkLost, e));
+            reconnect();
+        }
+
+        private void reconnect() {
+            if(!connected)
+                return;
+            reconnectAttempts++;
+            try {
+                socket.reconnect(backgroundReconnect);
+                // continues asynchronously in onSerialConnect or onSerialConnectError
+            } catch (IOException e) {
+                onReconnectFailed(e);
+            }
+        }
+
+        private void onReconnectFailed(Exception e) {
+            if(!connected || !reconnecting)
+                return;
+            if(!backgroundReconnect && reconnectAttempts >= RECONNECT_ATTEMPTS) {
+                reconnecting = false;
+                onSerialIoError(new IOException("reconnect failed after "+reconnectAttempts+" attempts: "+e.getMessage()));
+                return;
+            }
+            int delay = RECONNECT_DELAY_MIN << Math.min(reconnectAttempts-1, 5);
+            ioHandler.postDelayed(reconnectRunnable, Math.min(delay, RECONNECT_DELAY_MAX));
+        }
+
+        private void onReconnected() {
+            if(!connected || !reconnecting)
+                return;
+            reconnecting = false;
+            int millis = (int)((System.nanoTime() - reconnectStartNanos) / 1_000_000);
+            Log.d(TAG, socket.getName()+" reconnected in "+millis+" ms, attempts "+reconnectAttempts);
+            if(primary)
+                post(new QueueItem(QueueType.Reconnect, reconnectAttempts, millis));
+        }
+
+        /*
+         * SerialListener, follower events are only logged
+         */
+        public void onSerialConnect() {
+            if(connected && reconnecting) {
+                ioHandler.post(this::onReconnected);
+            } else if(connected && primary) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null) {
+                                listener.onSerialConnect();
+                            } else {
+                                queue1.add(new QueueItem(QueueType.Connect));
+                            }
+                        });
+                    } else {
+                        queue2.add(new QueueItem(QueueType.Connect));
+                    }
+                }
+            } else if(connected) {
+                Log.d(TAG, socket.getName()+" connected");
+            }
+        }
+
+        public void onSerialConnectError(Exception e) {
+            if(connected && reconnecting) {
+                ioHandler.post(() -> onReconnectFailed(e));
+            } else if(connected && primary) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null) {
+                                listener.onSerialConnectError(e);
+                            } else {
+                                queue1.add(new QueueItem(QueueType.ConnectError, e));
+                                SerialService.this.disconnect();
+                            }
+                        });
+                    } else {
+                        queue2.add(new QueueItem(QueueType.ConnectError, e));
+                        SerialService.this.disconnect();
+                    }
+                }
+            } else if(connected) {
+                Log.d(TAG, socket.getName()+" connect failed: "+e.getMessage());
+                ioHandler.post(() -> SerialService.this.disconnect(socket));
+            }
+        }
+
+        public void onSerialLinkParameters(LinkParameters params) {
+            if(connected && primary) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null) {
+                                listener.onSerialLinkParameters(params);
+                            } else {
+                                queue1.add(new QueueItem(QueueType.LinkParameters, params));
+                            }
+                        });
+                    } else {
+                        queue2.add(new QueueItem(QueueType.LinkParameters, params));
+                    }
+                }
+            } else if(connected) {
+                Log.d(TAG, socket.getName()+" link: "+params);
+            }
+        }
+
+        public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
+
+        public void onSerialReconnect(int attempts, int millis) { throw new UnsupportedOperationException(); }
+
+        public void onSerialBacklog(long spilledBytes, long droppedBytes) { throw new UnsupportedOperationException(); }
+
+        /**
+         * reduce number of UI updates by merging data chunks.
+         * Data can arrive at hundred chunks per second, but the UI can only
+         * perform a dozen updates if receiveText already contains much text.
+         *
+         * Data passes readPipeline in the GATT callback thread. Its output for the UI is
+         * passed to readDispatcher while attached, which merges it into one delivery per
+         * display frame, else queued in queue2 by onUiFrames().
+         *
+         * follower data is only counted by SerialSocket. While a benchmark runs, data is passed
+         * to it directly in the GATT callback thread, so UI delivery is not part of the round trip.
+         */
+        public void onSerialRead(byte[] data) {
+            if(connected && primary) {
+                Benchmark benchmark = SerialService.this.benchmark;
+                if(benchmark != null && benchmark.isRunning()) {
+                    benchmark.onReceive(data);
+                    return;
+                }
+                readPipeline.push(data);
+            }
+        }
+
+        public void onSerialIoError(Exception e) {
+            if(connected && primary) {
+                if(socket == null) // replay ended by itself, next disconnect() has nothing to stop
+                    replay = null;
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null) {
+                                listener.onSerialIoError(e);
+                            } else {
+                                queue1.add(new QueueItem(QueueType.IoError, e));
+                                SerialService.this.disconnect();
+                            }
+                        });
+                    } else {
+                        queue2.add(new QueueItem(QueueType.IoError, e));
+                        SerialService.this.disconnect();
+                    }
+                }
+            } else if(connected) {
+                Log.d(TAG, socket.getName()+" connection lost: "+e.getMessage());
+                ioHandler.post(() -> SerialService.this.disconnect(socket));
+            }
+        }
+
+        /**
+         * reconnect if enabled, else handled as onSerialIoError
+         */
+        public void onSerialLinkLost(Exception e) {
+            if(connected && reconnectEnabled && !reconnecting) {
+                reconnecting = true;
+                ioHandler.post(() -> onLinkLost(e));
+            } else {
+                onSerialIoError(e);
+            }
+        }
+    }
+
+    /**
+     * Lifecylce
+     */
+    public SerialService() {
+        mainLooper = new Handler(Looper.getMainLooper());
+        ioHandler = SerialIo.getHandler();
+        binder = new SerialBinder();
+        queue1 = new ArrayDeque<>();
+        queue2 = new ArrayDeque<>();
+        readDispatcher = new FrameDispatcher(this::deliverReads);
+        readPipeline = new Pipeline(new BufferPool(PIPELINE_BUFFER_SIZE, PIPELINE_BUFFERS));
+        uiSink = readPipeline.addSink("ui", UI_SINK_CAPACITY, Pipeline.Overflow.DropOldest, this::onUiFrames);
+        readDispatcher.setSink(uiSink);
+        readDispatcher.setDrainListener(this::onReadDrained);
+        sessions = new CopyOnWriteArrayList<>();
+        broadcasts = new ArrayDeque<>();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        spill = new SpillFile(new File(getCacheDir(), SPILL_FILE), SPILL_PAGE_SIZE, SPILL_MAX_SIZE);
+    }
+
+    @Override
+    public void onDestroy() {
+        cancelNotification();
+        disconnect();
+        stopRecording();
+        ioHandler.post(spill::close); // after pending writes
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Api
+     */
+    public void connect(SerialSocket socket) throws IOException {
+        if(getPrimary() != null)
+            throw new IOException("already connected");
+        connect(socket, true);
+    }
+
+    /**
+     * additional device, only receiving broadcast() writes
+     */
+    void connectFollower(SerialSocket socket) throws IOException {
+        connect(socket, false);
+    }
+
+    private void connect(SerialSocket socket, boolean primary) throws IOException {
+        Session session = new Session(socket, primary);
+        if(primary) {
+            socket.setRecorder(recorder);
+            socket.setReadSink(uiSink);
+            readPipeline.reset();
+        }
+        socket.connect(session);
+        session.connected = true;
+        session.lastStatsNanos = System.nanoTime();
+        sessions.add(session);
+    }
+
+    /**
+     * disconnect all devices
+     */
+    public void disconnect() {
+        cancelNotification();
+        SessionReplay replay = this.replay;
+        if(replay != null) {
+            this.replay = null;
+            replay.stop();
+        }
+        for(Session session : sessions)
+            session.disconnect();
+        sessions.clear();
+        synchronized (broadcasts) {
+            broadcasts.clear();
+        }
+    }
+
+    void disconnect(SerialSocket socket) {
+        for(Session session : sessions) {
+            if(session.socket == socket) {
+                session.disconnect();
+                sessions.remove(session);
+            }
+        }
+    }
+
+    /**
+     * feed a recording through the primary device read path instead of a connected device,
+     * to reproduce UI load without device. write() fails while replaying
+     */
+    void startReplay(SessionReplay replay) throws IOException {
+        if(getPrimary() != null || this.replay != null)
+            throw new IOException("already connected");
+        Session session = new Session(null, true);
+        session.connected = true;
+        readPipeline.reset();
+        this.replay = replay;
+        replay.start(session);
+    }
+
+    /**
+     * record traffic of the primary device to rotating files in dir, also while in background
+     */
+    void startRecording(File dir) throws IOException {
+        if(recorder != null)
+            return;
+        SessionRecorder recorder = new SessionRecorder(dir, RECORDER_BUFFER_SIZE, RECORDER_FILE_SIZE, RECORDER_FILES);
+        recorder.start();
+        this.recorder = recorder;
+        Session session = getPrimary();
+        if(session != null)
+            session.socket.setRecorder(recorder);
+    }
+
+    /**
+     * @return stopped recorder for its counters, null if not recording
+     */
+    SessionRecorder stopRecording() {
+        SessionRecorder recorder = this.recorder;
+        if(recorder == null)
+            return null;
+        Session session = getPrimary();
+        if(session != null)
+            session.socket.setRecorder(null);
+        this.recorder = null;
+        recorder.stop();
+        return recorder;
+    }
+
+    boolean isRecording() {
+        return recorder != null;
+    }
+
+    /**
+     * for the UI thread, fails with WriteQueue.FullException instead of blocking while the queue is full
+     */
+    public void write(byte[] data) throws IOException {
+        Session session = getPrimary();
+        if(session == null || !session.connected)
+            throw new IOException("not connected");
+        session.socket.write(data, WriteQueue.Priority.Control, WriteQueue.Overflow.FailFast, WriteQueue.NO_KEY);
+    }
+
+    WriteHandle write(byte[] data, WriteQueue.Priority priority, WriteQueue.Overflow overflow, int key) throws IOException {
+        Session session = getPrimary();
+        if(session == null || !session.connected)
+            throw new IOException("not connected");
+        return session.socket.write(data, priority, overflow, key);
+    }
+
+    /**
+     * framer, decoder and filter stages for data of the primary connection, applied to data received afterwards
+     */
+    void setReadStages(Pipeline.Stage... stages) {
+        readPipeline.setStages(stages);
+    }
+
+    /**
+     * benchmark frames are echoed by the primary device
+     * @param benchmark null after benchmark finished
+     */
+    void setBenchmark(Benchmark benchmark) {
+        this.benchmark = benchmark;
+    }
+
+    /**
+     * write the same frame to all connected devices. Packets reference data instead of a copy
+     * per device, so caller must not modify it afterwards. Devices currently reconnecting are skipped.
+     *
+     * @return handles of the devices the write was queued for
+     */
+    WriteHandle[] broadcast(byte[] data, WriteQueue.Priority priority, WriteQueue.Overflow overflow, int key) throws IOException {
+        ArrayList<WriteHandle> handles = new ArrayList<>(sessions.size());
+        IOException error = null;
+        for(Session session : sessions) {
+            if(!session.connected || session.reconnecting)
+                continue;
+            try {
+                handles.add(session.socket.write(data, priority, overflow, key));
+            } catch (IOException e) {
+                error = e; // other devices still get the frame
+            }
+        }
+        if(handles.isEmpty())
+            throw error != null ? error : new IOException("not connected");
+        WriteHandle[] result = handles.toArray(new WriteHandle[0]);
+        synchronized (broadcasts) {
+            updateSkew();
+            if(broadcasts.size() == BROADCASTS_TRACKED)
+                broadcasts.removeFirst();
+            broadcasts.addLast(result);
+        }
+        return result;
+    }
+
+    /**
+     * throughput since previous call, one entry per device
+     */
+    ArrayList<SessionStats> getSessionStats() {
+        long now = System.nanoTime();
+        ArrayList<SessionStats> stats = new ArrayList<>(sessions.size());
+        for(Session session : sessions)
+            stats.add(session.stats(now));
+        return stats;
+    }
+
+    /**
+     * metrics of the primary device, filled into caller owned snapshot
+     * @return false if not connected
+     */
+    boolean getMetrics(LinkMetrics.Snapshot snapshot) {
+        Session session = getPrimary();
+        if(session == null)
+            return false;
+        session.socket.getMetrics(snapshot);
+        snapshot.uiBatches = readDispatcher.getBatches();
+        snapshot.uiChunks = readDispatcher.getChunks();
+        snapshot.uiBatchMax = readDispatcher.getMaxChunks();
+        snapshot.readOverflows = readDispatcher.getOverflows();
+        return true;
+    }
+
+    /**
+     * time between first and last device confirming the same broadcast()
+     */
+    long getBroadcastSkewAvgMicros() {
+        synchronized (broadcasts) {
+            updateSkew();
+            return skewCount == 0 ? 0 : skewNanos / skewCount / 1000;
+        }
+    }
+
+    long getBroadcastSkewMaxMicros() {
+        synchronized (broadcasts) {
+            updateSkew();
+            return skewMaxNanos / 1000;
+        }
+    }
+
+    /**
+     * @param background use autoConnect, which waits until the device is in range. Attempts are
+     *                   then only repeated on connect errors and not limited to RECONNECT_ATTEMPTS
+     */
+    void setReconnect(boolean enabled, boolean background) {
+        reconnectEnabled = enabled;
+        backgroundReconnect = background;
+    }
+
+    public void attach(SerialListener listener) {
+        if(Looper.getMainLooper().getThread() != Thread.currentThread())
+            throw new IllegalArgumentException("not in main thread");
+        cancelNotification();
+        // use synchronized() to prevent new items in queue2
+        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
+        long spilledBytes, droppedBytes;
+        synchronized (this) {
+            this.listener = listener;
+            queuedReadBytes = 0;
+            spilledBytes = spill.getBytes() + spillingBytes;
+            droppedBytes = droppedReadBytes;
+            backlogPage = -1; // pending spill writes still add pages
+        }
+        if(spilledBytes > 0 || droppedBytes > 0)
+            listener.onSerialBacklog(spilledBytes, droppedBytes);
+        for(QueueItem item : queue1)
+            deliver(listener, item);
+        for(QueueItem item : queue2)
+            deliver(listener, item);
+        queue1.clear();
+        queue2.clear();
+    }
+
+    private static void deliver(SerialListener listener, QueueItem item) {
+        switch(item.type) {
+            case Connect:       listener.onSerialConnect      (); break;
+            case ConnectError:  listener.onSerialConnectError (item.e); break;
+            case LinkParameters: listener.onSerialLinkParameters(item.params); break;
+            case Read:          listener.onSerialRead         (item.datas); break;
+            case IoError:       listener.onSerialIoError      (item.e); break;
+            case LinkLost:      listener.onSerialLinkLost     (item.e); break;
+            case Reconnect:     listener.onSerialReconnect    (item.attempts, item.millis); break;
+        }
+    }
+
+    /**
+     * deliver event in main thread, or queue it while UI is detached
+     */
+    private void post(QueueItem item) {
+        synchronized (this) {
+            if (listener != null) {
+                mainLooper.post(() -> {
+                    if (listener != null)
+                        deliver(listener, item);
+                    else
+                        queue1.add(item);
+                });
+            } else {
+                queue2.add(item);
+            }
+        }
+    }
+
+    public void detach() {
+        if(!sessions.isEmpty())
+            createNotification();
+        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
+        // items occurring later, will be moved directly to queue2
+        // detach() and mainLooper.post run in the main thread, so all items are caught
+        synchronized (this) {
+            ioHandler.post(spill::clear); // pages not read since previous attach() are dropped, after pending writes
+            droppedReadBytes = 0;
+            backlogPage = 0;
+            listener = null;
+        }
+    }
+
+    /**
+     * older data than delivered in attach(), newest page first
+     * @return null if no more pages
+     */
+    ArrayDeque<byte[]> readBacklogPage() {
+        ArrayDeque<byte[]> datas = new ArrayDeque<>();
+        synchronized (this) {
+            if(backlogPage < 0)
+                backlogPage = spill.getPages();
+            if(backlogPage == 0)
+                return null;
+            backlogPage--;
+            try {
+                spill.readPage(backlogPage, datas);
+            } catch (IOException e) {
+                Log.w(TAG, "read backlog failed", e);
+                backlogPage = 0;
+                return null;
+            }
+        }
+        return datas;
+    }
+
+    /**
+     * uiSink signal, in the GATT callback thread. While detached, display frames might not come,
+     * so output is moved to queue2 here. uiSink.poll() also works while a frame callback posted
+     * before detach() still drains the sink
+     */
+    private void onUiFrames() {
+        if (listener == null) {
+            synchronized (this) {
+                if (listener == null) {
+                    BufferPool.Buffer buffer;
+                    while((buffer = uiSink.poll()) != null) {
+                        if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
+                            queue2.add(new QueueItem(QueueType.Read));
+                        queue2.getLast().add(buffer.toByteArray());
+                        queuedReadBytes += buffer.length;
+                        buffer.release();
+                    }
+                    if(queuedReadBytes > BACKLOG_MEMORY)
+                        spillReads();
+                    return;
+                }
+            }
+        }
+        readDispatcher.schedule();
+    }
+
+    /**
+     * move oldest read data from queue2 to spill file, until a quarter below BACKLOG_MEMORY,
+     * so this runs once per BACKLOG_MEMORY/4 bytes. Other queued events keep their order.
+     */
+    private void spillReads() {
+        ArrayDeque<byte[]> datas = new ArrayDeque<>();
+        Iterator<QueueItem> it = queue2.iterator();
+        while(queuedReadBytes > BACKLOG_MEMORY * 3 / 4 && it.hasNext()) {
+            QueueItem item = it.next();
+            if(item.type != QueueType.Read)
+                continue;
+            byte[] data;
+            while(queuedReadBytes > BACKLOG_MEMORY * 3 / 4 && (data = item.poll()) != null) {
+                queuedReadBytes -= data.length;
+                spillingBytes += data.length;
+                datas.add(data);
+            }
+            if(item.datas.isEmpty())
+                it.remove();
+        }
+        ioHandler.post(() -> writeSpill(datas));
+    }
+
+    /**
+     * SerialIo thread, so the GATT callback thread does not map or write the file while holding the lock
+     */
+    private void writeSpill(ArrayDeque<byte[]> datas) {
+        long bytes = 0, dropped = 0;
+        for(byte[] data : datas) {
+            bytes += data.length;
+            if(!spill.append(data))
+                dropped += data.length;
+        }
+        synchronized (this) {
+            spillingBytes -= bytes;
+            droppedReadBytes += dropped;
+        }
+    }
+
+    private Session getPrimary() {
+        for(Session session : sessions)
+            if(session.primary)
+                return session;
+        return null;
+    }
+
+    /**
+     * remove completed broadcasts from the head, unfinished ones are checked again later
+     */
+    private void updateSkew() {
+        while(!broadcasts.isEmpty()) {
+            WriteHandle[] handles = broadcasts.getFirst();
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+            boolean dropped = false;
+            for(WriteHandle handle : handles) {
+                if(!handle.isDone())
+                    return;
+                dropped |= handle.isDropped();
+                first = Math.min(first, handle.getDoneNanos());
+                last = Math.max(last, handle.getDoneNanos());
+            }
+            broadcasts.removeFirst();
+            if(dropped || handles.length < 2)
+                continue;
+            skewNanos += last - first;
+            skewMaxNanos = Math.max(skewMaxNanos, last - first);
+            skewCount++;
+        }
+    }
+
+    private void createNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel nc = new NotificationChannel(Constants.NOTIFICATION_CHANNEL, "Background service", NotificationManager.IMPORTANCE_LOW);
+            nc.setShowBadge(false);
+            NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            nm.createNotificationChannel(nc);
+        }
+        Intent disconnectIntent = new Intent()
+                .setAction(Constants.INTENT_ACTION_DISCONNECT);
+        Intent restartIntent = new Intent()
+                .setClassName(this, Constants.INTENT_CLASS_MAIN_ACTIVITY)
+                .setAction(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER);
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent disconnectPendingIntent = PendingIntent.getBroadcast(this, 1, disconnectIntent, flags);
+        PendingIntent restartPendingIntent = PendingIntent.getActivity(this, 1, restartIntent,  flags);
+        Session primary = getPrimary();
+        String text = primary != null ? "Connected to "+primary.socket.getName() : "Background Service";
+        if(sessions.size() > (primary != null ? 1 : 0))
+            text += " +" + (sessions.size() - (primary != null ? 1 : 0)) + " followers";
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setColor(getResources().getColor(R.color.colorPrimary))
+                .setContentTitle(getResources().getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(restartPendingIntent)
+                .setOngoing(true)
+                .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
+        // @drawable/ic_notification created with Android Studio -> New -> Image Asset using @color/colorPrimaryDark as background color
+        // Android < API 21 does not support vectorDrawables in notifications, so both drawables used here, are created as .png instead of .xml
+        Notification notification = builder.build();
+        startForeground(Constants.NOTIFY_MANAGER_START_FOREGROUND_SERVICE, notification);
+    }
+
+    private void cancelNotification() {
+        stopForeground(true);
+    }
+
+    /**
+     * UI took received data, so a primary device with credit based flow control can get credits again
+     */
+    private void onReadDrained(long waitNanos) {
+        Session session = getPrimary();
+        if(session != null && session.socket != null)
+            session.socket.onReadDrained(waitNanos);
+    }
+
+    /**
+     * batch is reused by readDispatcher, so it is copied when queued for later attach()
+     */
+    private void deliverReads(ArrayDeque<byte[]> datas) {
+        if (listener != null) {
+            listener.onSerialRead(datas);
+        } else {
+            queue1.add(new QueueItem(QueueType.Read, new ArrayDeque<>(datas)));
+        }
+    }
+
+}
@@ -1,653 +1,1121 @@
-package de.kai_morich.simple_bluetooth_le_terminal;
-
-import android.annotation.SuppressLint;
-import android.app.Activity;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.Build;
-import android.util.Log;
-
-import java.io.IOException;
-import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.UUID;
-
-/**
- * wrap BLE communication into socket like class
- *   - connect, disconnect and write as methods,
- *   - read + status is returned by SerialListener
- */
-@SuppressLint("MissingPermission") // various BluetoothGatt, BluetoothDevice methods
-class SerialSocket extends BluetoothGattCallback {
-
-    /**
-     * delegate device specific behaviour to inner class
-     */
-    private static class DeviceDelegate {
-        boolean connectCharacteristics(BluetoothGattService s) { return true; }
-        // following methods only overwritten for Telit devices
-        void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) { /*nop*/ }
-        void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {/*nop*/ }
-        void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
-        boolean canWrite() { return true; }
-        void disconnect() {/*nop*/ }
-    }
-
-    private static final UUID BLUETOOTH_LE_CCCD           = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-    private static final UUID BLUETOOTH_LE_CC254X_SERVICE = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
-    private static final UUID BLUETOOTH_LE_CC254X_CHAR_RW = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
-    private static final UUID BLUETOOTH_LE_NRF_SERVICE    = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
-    private static final UUID BLUETOOTH_LE_NRF_CHAR_RW2   = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e"); // read on microbit, write on adafruit
-    private static final UUID BLUETOOTH_LE_NRF_CHAR_RW3   = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
-    private static final UUID BLUETOOTH_LE_MICROCHIP_SERVICE    = UUID.fromString("49535343-FE7D-4AE5-8FA9-9FAFD205E455");
-    private static final UUID BLUETOOTH_LE_MICROCHIP_CHAR_RW    = UUID.fromString("49535343-1E4D-4BD9-BA61-23C647249616");
-    private static final UUID BLUETOOTH_LE_MICROCHIP_CHAR_W     = UUID.fromString("49535343-8841-43F4-A8D4-ECBE34729BB3");
-
-    // https://play.google.com/store/apps/details?id=com.telit.tiosample
-    // https://www.telit.com/wp-content/uploads/2017/09/TIO_Implementation_Guide_r6.pdf
-    private static final UUID BLUETOOTH_LE_TIO_SERVICE          = UUID.fromString("0000FEFB-0000-1000-8000-00805F9B34FB");
-    private static final UUID BLUETOOTH_LE_TIO_CHAR_TX          = UUID.fromString("00000001-0000-1000-8000-008025000000"); // WNR
-    private static final UUID BLUETOOTH_LE_TIO_CHAR_RX          = UUID.fromString("00000002-0000-1000-8000-008025000000"); // N
-    private static final UUID BLUETOOTH_LE_TIO_CHAR_TX_CREDITS  = UUID.fromString("00000003-0000-1000-8000-008025000000"); // W
-    private static final UUID BLUETOOTH_LE_TIO_CHAR_RX_CREDITS  = UUID.fromString("00000004-0000-1000-8000-008025000000"); // I
-
-    private static final int MAX_MTU = 512; // BLE standard does not limit, some BLE 4.2 devices support 251, various source say that Android has max 512
-    private static final int DEFAULT_MTU = 23;
-    private static final String TAG = "SerialSocket";
-
-    private final ArrayList<byte[]> writeBuffer;
-    private final IntentFilter pairingIntentFilter;
-    private final BroadcastReceiver pairingBroadcastReceiver;
-    private final BroadcastReceiver disconnectBroadcastReceiver;
-
-    private final Context context;
-    private SerialListener listener;
-    private DeviceDelegate delegate;
-    private BluetoothDevice device;
-    private BluetoothGatt gatt;
-    private int curr_rssi;
-    private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
-
-    private boolean writePending;
-    private boolean canceled;
-    private boolean connected;
-    private int payloadSize = DEFAULT_MTU-3;
-
-    SerialSocket(Context context, BluetoothDevice device) {
-        if(context instanceof Activity)
-            throw new InvalidParameterException("expected non UI context");
-        this.context = context;
-        this.device = device;
-        writeBuffer = new ArrayList<>();
-        pairingIntentFilter = new IntentFilter();
-        pairingIntentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-        pairingIntentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
-        pairingBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                onPairingBroadcastReceive(context, intent);
-            }
-        };
-        disconnectBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if(listener != null)
-                    listener.onSerialIoError(new IOException("background disconnect"));
-                disconnect(); // disconnect now, else would be queued until UI re-attached
-            }
-        };
-    }
-
-    String getName() {
-        return device.getName() != null ? device.getName() : device.getAddress();
-    }
-    BluetoothGatt getGatt() {
-        return gatt;
-    }
-    void disconnect() {
-        Log.d(TAG, "disconnect");
-        listener = null; // ignore remaining data and errors
-        device = null;
-        canceled = true;
-        synchronized (writeBuffer) {
-            writePending = false;
-            writeBuffer.clear();
-        }
-        readCharacteristic = null;
-        writeCharacteristic = null;
-        if(delegate != null)
-            delegate.disconnect();
-        if (gatt != null) {
-            Log.d(TAG, "gatt.disconnect");
-            gatt.disconnect();
-            Log.d(TAG, "gatt.close");
-            try {
-                gatt.close();
-            } catch (Exception ignored) {}
-            gatt = null;
-            connected = false;
-        }
-        try {
-            context.unregisterReceiver(pairingBroadcastReceiver);
-        } catch (Exception ignored) {
-        }
-        try {
-            context.unregisterReceiver(disconnectBroadcastReceiver);
-        } catch (Exception ignored) {
-        }
-    }
-
-    /**
-     * connect-success and most connect-errors are returned asynchronously to listener
-     */
-    void connect(SerialListener listener) throws IOException {
-        if(connected || gatt != null)
-            throw new IOException("already connected");
-        canceled = false;
-        this.listener = listener;
-        context.registerReceiver(disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT));
-        Log.d(TAG, "connect "+device);
-        context.registerReceiver(pairingBroadcastReceiver, pairingIntentFilter);
-        if (Build.VERSION.SDK_INT < 23) {
-            Log.d(TAG, "connectGatt");
-            gatt = device.connectGatt(context, false, this);
-        } else {
-            Log.d(TAG, "connectGatt,LE");
-            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
-        }
-        if (gatt == null)
-            throw new IOException("connectGatt failed");
-        // continues asynchronously in onPairingBroadcastReceive() and onConnectionStateChange()
-    }
-
-    private void onPairingBroadcastReceive(Context context, Intent intent) {
-        // for ARM Mbed, Microbit, ... use pairing from Android bluetooth settings
-        // for HM10-clone, ... pairing is initiated here
-        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        if(device==null || !device.equals(this.device))
-            return;
-        switch (intent.getAction()) {
-            case BluetoothDevice.ACTION_PAIRING_REQUEST:
-                final int pairingVariant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT, -1);
-                Log.d(TAG, "pairing request " + pairingVariant);
-                onSerialConnectError(new IOException(context.getString(R.string.pairing_request)));
-                // pairing dialog brings app to background (onPause), but it is still partly visible (no onStop), so there is no automatic disconnect()
-                break;
-            case BluetoothDevice.ACTION_BOND_STATE_CHANGED:
-                final int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
-                final int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
-                Log.d(TAG, "bond state " + previousBondState + "->" + bondState);
-                break;
-            default:
-                Log.d(TAG, "unknown broadcast " + intent.getAction());
-                break;
-        }
-    }
-    public int getRssi() {return curr_rssi;}
-    @Override
-    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            // RSSI value is available in 'rssi'
-            curr_rssi = rssi;
-        }
-    }
-    @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        // status directly taken from gat_api.h, e.g. 133=0x85=GATT_ERROR ~= timeout
-        if (newState == BluetoothProfile.STATE_CONNECTED) {
-            Log.d(TAG,"connect status "+status+", discoverServices");
-            if (!gatt.discoverServices())
-                onSerialConnectError(new IOException("discoverServices failed"));
-        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            if (connected)
-                onSerialIoError     (new IOException("gatt status " + status));
-            else
-                onSerialConnectError(new IOException("gatt status " + status));
-        } else {
-            Log.d(TAG, "unknown connect state "+newState+" "+status);
-        }
-        // continues asynchronously in onServicesDiscovered()
-    }
-
-    @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        Log.d(TAG, "servicesDiscovered, status " + status);
-        if (canceled)
-            return;
-        connectCharacteristics1(gatt);
-    }
-
-    private void connectCharacteristics1(BluetoothGatt gatt) {
-        boolean sync = true;
-        writePending = false;
-        for (BluetoothGattService gattService : gatt.getServices()) {
-            if (gattService.getUuid().equals(BLUETOOTH_LE_CC254X_SERVICE))
-                delegate = new Cc245XDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_MICROCHIP_SERVICE))
-                delegate = new MicrochipDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_NRF_SERVICE))
-                delegate = new NrfDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_TIO_SERVICE))
-                delegate = new TelitDelegate();
-
-            if(delegate != null) {
-                sync = delegate.connectCharacteristics(gattService);
-                break;
-            }
-        }
-        if(canceled)
-            return;
-        if(delegate==null || readCharacteristic==null || writeCharacteristic==null) {
-            for (BluetoothGattService gattService : gatt.getServices()) {
-                Log.d(TAG, "service "+gattService.getUuid());
-                for(BluetoothGattCharacteristic characteristic : gattService.getCharacteristics())
-                    Log.d(TAG, "characteristic "+characteristic.getUuid());
-            }
-            onSerialConnectError(new IOException("no serial profile found"));
-            return;
-        }
-        if(sync)
-            connectCharacteristics2(gatt);
-    }
-
-    private void connectCharacteristics2(BluetoothGatt gatt) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            Log.d(TAG, "request max MTU");
-            if (!gatt.requestMtu(MAX_MTU))
-                onSerialConnectError(new IOException("request MTU failed"));
-            // continues asynchronously in onMtuChanged
-        } else {
-            connectCharacteristics3(gatt);
-        }
-    }
-
-    @Override
-    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-        Log.d(TAG,"mtu size "+mtu+", status="+status);
-        if(status ==  BluetoothGatt.GATT_SUCCESS) {
-            payloadSize = mtu - 3;
-            Log.d(TAG, "payload size "+payloadSize);
-        }
-        connectCharacteristics3(gatt);
-    }
-
-    private void connectCharacteristics3(BluetoothGatt gatt) {
-        int writeProperties = writeCharacteristic.getProperties();
-        if((writeProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE +     // Microbit,HM10-clone have WRITE
-                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) ==0) { // HM10,TI uart,Telit have only WRITE_NO_RESPONSE
-            onSerialConnectError(new IOException("write characteristic not writable"));
-            return;
-        }
-        if(!gatt.setCharacteristicNotification(readCharacteristic,true)) {
-            onSerialConnectError(new IOException("no notification for read characteristic"));
-            return;
-        }
-        BluetoothGattDescriptor readDescriptor = readCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
-        if(readDescriptor == null) {
-            onSerialConnectError(new IOException("no CCCD descriptor for read characteristic"));
-            return;
-        }
-        int readProperties = readCharacteristic.getProperties();
-        if((readProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
-            Log.d(TAG, "enable read indication");
-            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-        }else if((readProperties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-            Log.d(TAG, "enable read notification");
-            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        } else {
-            onSerialConnectError(new IOException("no indication/notification for read characteristic ("+readProperties+")"));
-            return;
-        }
-        Log.d(TAG,"writing read characteristic descriptor");
-        if(!gatt.writeDescriptor(readDescriptor)) {
-            onSerialConnectError(new IOException("read characteristic CCCD descriptor not writable"));
-        }
-        // continues asynchronously in onDescriptorWrite()
-    }
-
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        delegate.onDescriptorWrite(gatt, descriptor, status);
-        if(canceled)
-            return;
-        if(descriptor.getCharacteristic() == readCharacteristic) {
-            Log.d(TAG,"writing read characteristic descriptor finished, status="+status);
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                onSerialConnectError(new IOException("write descriptor failed"));
-            } else {
-                // onCharacteristicChanged with incoming data can happen after writeDescriptor(ENABLE_INDICATION/NOTIFICATION)
-                // before confirmed by this method, so receive data can be shown before device is shown as 'Connected'.
-                onSerialConnect();
-                connected = true;
-                Log.d(TAG, "connected");
-            }
-        }
-    }
-
-    /*
-     * read
-     */
-    @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        if(canceled)
-            return;
-        delegate.onCharacteristicChanged(gatt, characteristic);
-        if(canceled)
-            return;
-        if(characteristic == readCharacteristic) { // NOPMD - test object identity
-            byte[] data = readCharacteristic.getValue();
-            onSerialRead(data);
-            Log.d(TAG,"read, len="+data.length);
-        }
-    }
-
-    /*
-     * write
-     */
-    void write(byte[] data) throws IOException {
-        if(canceled || !connected || writeCharacteristic == null)
-            throw new IOException("not connected");
-        byte[] data0;
-        synchronized (writeBuffer) {
-            if(data.length <= payloadSize) {
-                data0 = data;
-            } else {
-                data0 = Arrays.copyOfRange(data, 0, payloadSize);
-            }
-            if(!writePending && writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-            } else {
-                writeBuffer.add(data0);
-                Log.d(TAG,"write queued, len="+data0.length);
-                data0 = null;
-            }
-            if(data.length > payloadSize) {
-                for(int i=1; i<(data.length+payloadSize-1)/payloadSize; i++) {
-                    int from = i*payloadSize;
-                    int to = Math.min(from+payloadSize, data.length);
-                    writeBuffer.add(Arrays.copyOfRange(data, from, to));
-                    Log.d(TAG,"write queued, len="+(to-from));
-                }
-            }
-        }
-        if(data0 != null) {
-            writeCharacteristic.setValue(data0);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
-            } else {
-                Log.d(TAG,"write started, len="+data0.length);
-            }
-        }
-        // continues asynchronously in onCharacteristicWrite()
-    }
-
-    @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        if(canceled || !connected || writeCharacteristic == null)
-            return;
-        if(status != BluetoothGatt.GATT_SUCCESS) {
-            onSerialIoError(new IOException("write failed"));
-            return;
-        }
-        delegate.onCharacteristicWrite(gatt, characteristic, status);
-        if(canceled)
-            return;
-        if(characteristic == writeCharacteristic) { // NOPMD - test object identity
-            Log.d(TAG,"write finished, status="+status);
-            writeNext();
-        }
-    }
-
-    private void writeNext() {
-        final byte[] data;
-        synchronized (writeBuffer) {
-            if (!writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-                data = writeBuffer.remove(0);
-            } else {
-                writePending = false;
-                data = null;
-            }
-        }
-        if(data != null) {
-            writeCharacteristic.setValue(data);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
-            } else {
-                Log.d(TAG,"write started, len="+data.length);
-            }
-        }
-    }
-
-    /**
-     * SerialListener
-     */
-    private void onSerialConnect() {
-        if (listener != null)
-            listener.onSerialConnect();
-    }
-
-    private void onSerialConnectError(Exception e) {
-        canceled = true;
-        if (listener != null)
-            listener.onSerialConnectError(e);
-    }
-
-    private void onSerialRead(byte[] data) {
-        if (listener != null)
-            listener.onSerialRead(data);
-    }
-
-    private void onSerialIoError(Exception e) {
-        writePending = false;
-        canceled = true;
-        if (listener != null)
-            listener.onSerialIoError(e);
-    }
-
-    /**
-     * device delegates
-     */
-
-    private class Cc245XDelegate extends DeviceDelegate {
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service cc254x uart");
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
-            return true;
-        }
-    }
-
-    private class MicrochipDelegate extends DeviceDelegate {
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service microchip uart");
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_RW);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_W);
-            if(writeCharacteristic == null)
-                writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_RW);
-            return true;
-        }
-    }
-
-    private class NrfDelegate extends DeviceDelegate {
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service nrf uart");
-            BluetoothGattCharacteristic rw2 = gattService.getCharacteristic(BLUETOOTH_LE_NRF_CHAR_RW2);
-            BluetoothGattCharacteristic rw3 = gattService.getCharacteristic(BLUETOOTH_LE_NRF_CHAR_RW3);
-            if (rw2 != null && rw3 != null) {
-                int rw2prop = rw2.getProperties();
-                int rw3prop = rw3.getProperties();
-                boolean rw2write = (rw2prop & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0;
-                boolean rw3write = (rw3prop & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0;
-                Log.d(TAG, "characteristic properties " + rw2prop + "/" + rw3prop);
-                if (rw2write && rw3write) {
-                    onSerialConnectError(new IOException("multiple write characteristics (" + rw2prop + "/" + rw3prop + ")"));
-                } else if (rw2write) {
-                    writeCharacteristic = rw2;
-                    readCharacteristic = rw3;
-                } else if (rw3write) {
-                    writeCharacteristic = rw3;
-                    readCharacteristic = rw2;
-                } else {
-                    onSerialConnectError(new IOException("no write characteristic (" + rw2prop + "/" + rw3prop + ")"));
-                }
-            }
-            return true;
-        }
-    }
-
-    private class TelitDelegate extends DeviceDelegate {
-        private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
-        private int readCredits, writeCredits;
-
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service telit tio 2.0");
-            readCredits = 0;
-            writeCredits = 0;
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX);
-            readCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX_CREDITS);
-            writeCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX_CREDITS);
-            if (readCharacteristic == null) {
-                onSerialConnectError(new IOException("read characteristic not found"));
-                return false;
-            }
-            if (writeCharacteristic == null) {
-                onSerialConnectError(new IOException("write characteristic not found"));
-                return false;
-            }
-            if (readCreditsCharacteristic == null) {
-                onSerialConnectError(new IOException("read credits characteristic not found"));
-                return false;
-            }
-            if (writeCreditsCharacteristic == null) {
-                onSerialConnectError(new IOException("write credits characteristic not found"));
-                return false;
-            }
-            if (!gatt.setCharacteristicNotification(readCreditsCharacteristic, true)) {
-                onSerialConnectError(new IOException("no notification for read credits characteristic"));
-                return false;
-            }
-            BluetoothGattDescriptor readCreditsDescriptor = readCreditsCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
-            if (readCreditsDescriptor == null) {
-                onSerialConnectError(new IOException("no CCCD descriptor for read credits characteristic"));
-                return false;
-            }
-            readCreditsDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-            Log.d(TAG,"writing read credits characteristic descriptor");
-            if (!gatt.writeDescriptor(readCreditsDescriptor)) {
-                onSerialConnectError(new IOException("read credits characteristic CCCD descriptor not writable"));
-                return false;
-            }
-            Log.d(TAG, "writing read credits characteristic descriptor");
-            return false;
-            // continues asynchronously in connectCharacteristics2
-        }
-
-        @Override
-        void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if(descriptor.getCharacteristic() == readCreditsCharacteristic) {
-                Log.d(TAG, "writing read credits characteristic descriptor finished, status=" + status);
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    onSerialConnectError(new IOException("write credits descriptor failed"));
-                } else {
-                    connectCharacteristics2(gatt);
-                }
-            }
-            if(descriptor.getCharacteristic() == readCharacteristic) {
-                Log.d(TAG, "writing read characteristic descriptor finished, status=" + status);
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    readCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                    writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                    grantReadCredits();
-                    // grantReadCredits includes gatt.writeCharacteristic(writeCreditsCharacteristic)
-                    // but we do not have to wait for confirmation, as it is the last write of connect phase.
-                }
-            }
-        }
-
-        @Override
-        void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            if(characteristic == readCreditsCharacteristic) { // NOPMD - test object identity
-                int newCredits = readCreditsCharacteristic.getValue()[0];
-                synchronized (writeBuffer) {
-                    writeCredits += newCredits;
-                }
-                Log.d(TAG, "got write credits +"+newCredits+" ="+writeCredits);
-
-                if (!writePending && !writeBuffer.isEmpty()) {
-                    Log.d(TAG, "resume blocked write");
-                    writeNext();
-                }
-            }
-            if(characteristic == readCharacteristic) { // NOPMD - test object identity
-                grantReadCredits();
-                Log.d(TAG, "read, credits=" + readCredits);
-            }
-        }
-
-        @Override
-        void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if(characteristic == writeCharacteristic) { // NOPMD - test object identity
-                synchronized (writeBuffer) {
-                    if (writeCredits > 0)
-                        writeCredits -= 1;
-                }
-                Log.d(TAG, "write finished, credits=" + writeCredits);
-            }
-            if(characteristic == writeCreditsCharacteristic) { // NOPMD - test object identity
-                Log.d(TAG,"write credits finished, status="+status);
-            }
-        }
-
-        @Override
-        boolean canWrite() {
-            if(writeCredits > 0)
-                return true;
-            Log.d(TAG, "no write credits");
-            return false;
-        }
-
-        @Override
-        void disconnect() {
-            readCreditsCharacteristic = null;
-            writeCreditsCharacteristic = null;
-        }
-
-        private void grantReadCredits() {
-            final int minReadCredits = 16;
-            final int maxReadCredits = 64;
-            if(readCredits > 0)
-                readCredits -= 1;
-            if(readCredits <= minReadCredits) {
-                int newCredits = maxReadCredits - readCredits;
-                readCredits += newCredits;
-                byte[] data = new byte[] {(byte)newCredits};
-                Log.d(TAG, "grant read credits +"+newCredits+" ="+readCredits);
-                writeCreditsCharacteristic.setValue(data);
-                if (!gatt.writeCharacteristic(writeCreditsCharacteristic)) {
-                    if(connected)
-                        onSerialIoError(new IOException("write read credits failed"));
-                    else
-                        onSerialConnectError(new IOException("write read credits failed"));
-                }
-            }
-        }
-
-    }
-
-}
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * wrap BLE communication into socket like class
+ *   - connect, disconnect and write as methods,
+ *   - read + status is returned by SerialListener
+ *
+ * write queueing, windowing and counters are done by SerialEngine, this class is its GATT PacketLink
+ */
+@SuppressLint("MissingPermission") // various BluetoothGatt, BluetoothDevice methods
+class SerialSocket extends BluetoothGattCallback {
+
+    /**
+     * delegate device specific behaviour to inner class
+     */
+    private static class DeviceDelegate {
+        final SerialProfile profile;
+        DeviceDelegate(SerialProfile profile) { this.profile = profile; }
+        boolean connectCharacteristics(BluetoothGattService s) { return true; }
+        boolean connectCharacteristics(BluetoothGattService s, DeviceCache.Entry cached) { return connectCharacteristics(s); }
+        // following methods only overwritten for Telit devices
+        void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) { /*nop*/ }
+        void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c, byte[] value) {/*nop*/ }
+        void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
+        void onReadDrained(long waitNanos, int backlog) { /*nop*/ }
+        CreditController getReadCredits() { return null; }
+        boolean canWrite() { return true; }
+        boolean canPipeline(BluetoothGattCharacteristic c) {
+            return profile.writeType != SerialProfile.WriteType.Response && (c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        }
+        void disconnect() {/*nop*/ }
+    }
+
+    private static final UUID BLUETOOTH_LE_CCCD           = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    // https://www.telit.com/wp-content/uploads/2017/09/TIO_Implementation_Guide_r6.pdf
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_TX_CREDITS  = UUID.fromString("00000003-0000-1000-8000-008025000000"); // W
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_RX_CREDITS  = UUID.fromString("00000004-0000-1000-8000-008025000000"); // I
+
+    private static final int MAX_MTU = 512; // BLE standard does not limit, some BLE 4.2 devices support 251, various source say that Android has max 512
+    private static final int DEFAULT_MTU = 23;
+    private static final int RSSI_DEADLINE = 500; // ms, RSSI read is started before data writes after this time
+    private static final int WRITE_QUEUE_CAPACITY = 256; // packets per priority, queued + in flight
+    private static final int WRITE_BLOCK_TIMEOUT = 2000; // ms, for WriteQueue.Overflow.Block
+    private static final String TAG = "SerialSocket";
+
+    private final SerialEngine engine;
+    private final IntentFilter pairingIntentFilter;
+    private final BroadcastReceiver pairingBroadcastReceiver;
+    private final BroadcastReceiver disconnectBroadcastReceiver;
+    private final Handler handler;
+    private final Runnable flushRunnable;
+    private final GattScheduler scheduler;
+    private final DeviceCache deviceCache;
+    private final ProfileRegistry profiles;
+    private volatile SessionRecorder recorder;
+    private volatile Pipeline.Sink readSink; // received data waiting for the consumer
+
+    private final Context context;
+    private SerialListener listener;
+    private DeviceDelegate delegate;
+    private BluetoothDevice device;
+    private volatile BluetoothGatt gatt; // callbacks of previous gatt after reconnect are ignored
+    private int curr_rssi;
+    private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
+
+    private int pipelineWindow = 1;  // requested, effective window > 1 only with WRITE_TYPE_NO_RESPONSE
+    private boolean canceled;
+    private boolean connected;
+    private int mtu = DEFAULT_MTU;
+    private int txPhy = BluetoothDevice.PHY_LE_1M, rxPhy = BluetoothDevice.PHY_LE_1M;
+    private int intervalMicros, latency;
+    private int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private boolean phyPending;
+    private final AtomicBoolean linkParametersRequested = new AtomicBoolean(); // once per connect, MTU callback can follow MTU timeout
+    private DeviceCache.Entry cached; // profile from previous connect, null if not known or not matching
+    private long connectStartNanos;
+    private int connectMillis;
+
+    SerialSocket(Context context, BluetoothDevice device) {
+        if(context instanceof Activity)
+            throw new InvalidParameterException("expected non UI context");
+        this.context = context;
+        this.device = device;
+        engine = new SerialEngine(new PacketLink() {
+            @Override
+            public boolean canSend() {
+                return !canceled && connected && delegate.canWrite();
+            }
+            @Override
+            public int send(byte[] packet) {
+                return SerialSocket.this.send(packet);
+            }
+            @Override
+            public void scheduleFlush(long delayNanos) {
+                SerialSocket.this.scheduleFlush(delayNanos);
+            }
+        }, this::onSerialIoError, WRITE_QUEUE_CAPACITY, WRITE_BLOCK_TIMEOUT, DEFAULT_MTU-3);
+        deviceCache = new DeviceCache(context);
+        profiles = ProfileRegistry.getInstance(context);
+        pairingIntentFilter = new IntentFilter();
+        pairingIntentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        pairingIntentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
+        pairingBroadcastReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onPairingBroadcastReceive(context, intent);
+            }
+        };
+        disconnectBroadcastReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if(listener != null)
+                    listener.onSerialIoError(new IOException("background disconnect"));
+                disconnect(); // disconnect now, else would be queued until UI re-attached
+            }
+        };
+        handler = SerialIo.getHandler();
+        flushRunnable = () -> {
+            if(!canceled)
+                engine.writeNext();
+        };
+        scheduler = new GattScheduler(handler, new GattScheduler.Callback() {
+            @Override
+            public void onOperationFailed(GattScheduler.Op op, boolean timeout) {
+                onGattOperationFailed(op, timeout);
+            }
+            @Override
+            public void onWritable() {
+                if(!canceled)
+                    engine.writeNext();
+            }
+        });
+    }
+
+    String getName() {
+        return device.getName() != null ? device.getName() : device.getAddress();
+    }
+    BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    /**
+     * record received notifications and started writes, null to stop
+     */
+    void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * sink the consumer drains received data from. With credit based flow control
+     * its depth is subtracted from granted credits, so the peer does not send faster than the consumer drains
+     */
+    void setReadSink(Pipeline.Sink sink) {
+        this.readSink = sink;
+    }
+
+    /**
+     * consumer took the data queued in readSink, in the consumer thread
+     * @param waitNanos  time the oldest data waited until it was taken
+     */
+    void onReadDrained(long waitNanos) {
+        DeviceDelegate delegate = this.delegate;
+        Pipeline.Sink sink = readSink;
+        if(delegate != null && sink != null)
+            delegate.onReadDrained(waitNanos, sink.getDepth());
+    }
+
+    /**
+     * merge small writes into payloadSize packets.
+     * A packet that is not full is held back up to flushDeadlineMicros to collect more data,
+     * so 0 only merges writes queued while the previous packet is in flight.
+     */
+    void setCoalescing(boolean enabled, int flushDeadlineMicros) {
+        engine.setCoalescing(enabled, flushDeadlineMicros);
+    }
+    /**
+     * keep up to window writes in flight using WRITE_TYPE_NO_RESPONSE, if supported by the write characteristic.
+     * Each onCharacteristicWrite returns one credit. Has to be set before connect.
+     */
+    void setPipelined(int window) {
+        pipelineWindow = Math.max(1, window);
+    }
+    int getWriteWindow() {
+        return engine.getWindow();
+    }
+    /**
+     * time from connect() to onSerialConnect
+     */
+    int getConnectMillis() {
+        return connectMillis;
+    }
+    /**
+     * connected with cached profile instead of full service lookup,
+     * without waiting for MTU and PHY requests
+     */
+    boolean isConnectCached() {
+        return cached != null;
+    }
+    LinkParameters getLinkParameters() {
+        return new LinkParameters(mtu, txPhy, rxPhy, intervalMicros, latency, priority);
+    }
+
+    long getWrittenBytes() {
+        return engine.getTxBytes();
+    }
+    long getReadBytes() {
+        return engine.getRxBytes();
+    }
+    /**
+     * fills caller owned snapshot, without allocation
+     */
+    void getMetrics(LinkMetrics.Snapshot snapshot) {
+        engine.getMetrics(snapshot);
+        scheduler.getLatency(GattScheduler.Op.Write, snapshot.writeRtt);
+        snapshot.rssi = curr_rssi;
+        snapshot.updateRates(System.nanoTime());
+    }
+    /**
+     * read credit grants and stalls, empty if device has no credit based flow control
+     */
+    CreditController.Sample[] getReadCreditTimeline() {
+        DeviceDelegate delegate = this.delegate;
+        CreditController credits = delegate != null ? delegate.getReadCredits() : null;
+        if(credits == null)
+            return new CreditController.Sample[0];
+        synchronized (credits) {
+            return credits.getTimeline();
+        }
+    }
+    int getWriteQueueSize() {
+        return engine.getQueueSize();
+    }
+    long getDroppedWrites() {
+        return engine.getDroppedWrites();
+    }
+    long getCommandDelayAvgMicros() {
+        return engine.getQueueDelayAvgMicros(WriteQueue.Priority.Control);
+    }
+    long getCommandDelayMaxMicros() {
+        return engine.getQueueDelayMaxMicros(WriteQueue.Priority.Control);
+    }
+    long getCoalescedPackets() {
+        return engine.getCoalescedPackets();
+    }
+    long getCoalesceDelayAvgMicros() {
+        return engine.getCoalesceDelayAvgMicros();
+    }
+    long getCoalesceDelayMaxMicros() {
+        return engine.getCoalesceDelayMaxMicros();
+    }
+    /**
+     * time from start of GATT operation to completion callback
+     */
+    LatencyHistogram getLatency(GattScheduler.Op op) {
+        return scheduler.getLatency(op, new LatencyHistogram());
+    }
+
+    void disconnect() {
+        Log.d(TAG, "disconnect");
+        listener = null; // ignore remaining data and errors
+        device = null;
+        canceled = true;
+        engine.clear(); // completes pending WriteHandles as dropped
+        handler.removeCallbacks(flushRunnable);
+        scheduler.clear();
+        closeGatt();
+        try {
+            context.unregisterReceiver(pairingBroadcastReceiver);
+        } catch (Exception ignored) {
+        }
+        try {
+            context.unregisterReceiver(disconnectBroadcastReceiver);
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void closeGatt() {
+        readCharacteristic = null;
+        writeCharacteristic = null;
+        if(delegate != null)
+            delegate.disconnect();
+        if (gatt != null) {
+            Log.d(TAG, "gatt.disconnect");
+            gatt.disconnect();
+            Log.d(TAG, "gatt.close");
+            try {
+                gatt.close();
+            } catch (Exception ignored) {}
+            gatt = null;
+            connected = false;
+        }
+    }
+
+    /**
+     * connect-success and most connect-errors are returned asynchronously to listener
+     */
+    void connect(SerialListener listener) throws IOException {
+        if(connected || gatt != null)
+            throw new IOException("already connected");
+        this.listener = listener;
+        context.registerReceiver(disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT));
+        Log.d(TAG, "connect "+device);
+        context.registerReceiver(pairingBroadcastReceiver, pairingIntentFilter);
+        connectGatt(false);
+        // continues asynchronously in onPairingBroadcastReceive() and onConnectionStateChange()
+    }
+
+    /**
+     * connect again after onSerialLinkLost. Queued Control writes are kept and sent after onSerialConnect,
+     * writes in flight and Telemetry writes are dropped.
+     * @param autoConnect wait in background until device is in range, instead of connect error after ~30 s
+     */
+    void reconnect(boolean autoConnect) throws IOException {
+        if(device == null)
+            throw new IOException("disconnected");
+        Log.d(TAG, "reconnect "+device+", autoConnect="+autoConnect);
+        canceled = true; // ignore events until previous gatt is closed, its late callbacks are ignored by gatt identity
+        scheduler.clear();
+        handler.removeCallbacks(flushRunnable);
+        engine.keepQueued(WriteQueue.Priority.Control);
+        closeGatt();
+        connected = false;
+        delegate = null;
+        engine.setPayloadSize(DEFAULT_MTU-3);
+        mtu = DEFAULT_MTU;
+        txPhy = rxPhy = BluetoothDevice.PHY_LE_1M;
+        intervalMicros = latency = 0;
+        priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        phyPending = false;
+        connectGatt(autoConnect);
+    }
+
+    private void connectGatt(boolean autoConnect) throws IOException {
+        canceled = false;
+        linkParametersRequested.set(false);
+        engine.restart();
+        connectStartNanos = System.nanoTime();
+        cached = deviceCache.get(device.getAddress());
+        if (Build.VERSION.SDK_INT < 23) {
+            Log.d(TAG, "connectGatt");
+            gatt = device.connectGatt(context, autoConnect, this);
+        } else {
+            Log.d(TAG, "connectGatt,LE");
+            gatt = device.connectGatt(context, autoConnect, this, BluetoothDevice.TRANSPORT_LE);
+        }
+        if (gatt == null)
+            throw new IOException("connectGatt failed");
+    }
+
+    private void onPairingBroadcastReceive(Context context, Intent intent) {
+        // for ARM Mbed, Microbit, ... use pairing from Android bluetooth settings
+        // for HM10-clone, ... pairing is initiated here
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if(device==null || !device.equals(this.device))
+            return;
+        switch (intent.getAction()) {
+            case BluetoothDevice.ACTION_PAIRING_REQUEST:
+                final int pairingVariant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT, -1);
+                Log.d(TAG, "pairing request " + pairingVariant);
+                onSerialConnectError(new IOException(context.getString(R.string.pairing_request)));
+                // pairing dialog brings app to background (onPause), but it is still partly visible (no onStop), so there is no automatic disconnect()
+                break;
+            case BluetoothDevice.ACTION_BOND_STATE_CHANGED:
+                final int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
+                final int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
+                Log.d(TAG, "bond state " + previousBondState + "->" + bondState);
+                break;
+            default:
+                Log.d(TAG, "unknown broadcast " + intent.getAction());
+                break;
+        }
+    }
+    public int getRssi() {return curr_rssi;}
+
+    /**
+     * result is returned by getRssi(). Skipped if previous read not finished yet
+     */
+    void readRssi() {
+        if(canceled || !connected || scheduler.isPending(GattScheduler.Op.Rssi))
+            return;
+        scheduler.submit(GattScheduler.Op.Rssi, RSSI_DEADLINE, () -> gatt != null && gatt.readRemoteRssi());
+    }
+
+    @Override
+    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        scheduler.complete(GattScheduler.Op.Rssi);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            // RSSI value is available in 'rssi'
+            curr_rssi = rssi;
+        }
+    }
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        // status directly taken from gat_api.h, e.g. 133=0x85=GATT_ERROR ~= timeout
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            Log.d(TAG,"connect status "+status+", discoverServices");
+            if (!gatt.discoverServices())
+                onSerialConnectError(new IOException("discoverServices failed"));
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            if (connected)
+                onSerialLinkLost    (new IOException("gatt status " + status));
+            else
+                onSerialConnectError(new IOException("gatt status " + status));
+        } else {
+            Log.d(TAG, "unknown connect state "+newState+" "+status);
+        }
+        // continues asynchronously in onServicesDiscovered()
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        Log.d(TAG, "servicesDiscovered, status " + status);
+        if (canceled)
+            return;
+        connectCharacteristics1(gatt);
+    }
+
+    private void connectCharacteristics1(BluetoothGatt gatt) {
+        boolean sync = true;
+        engine.setWindow(1);
+        BluetoothGattService cachedService = getCachedService(gatt);
+        if(cachedService != null) {
+            Log.d(TAG, "cached service "+cached.service);
+            delegate = createDelegate(cachedService.getUuid());
+            sync = delegate.connectCharacteristics(cachedService, cached);
+        } else {
+            for (BluetoothGattService gattService : gatt.getServices()) {
+                delegate = createDelegate(gattService.getUuid());
+                if (delegate != null) {
+                    sync = delegate.connectCharacteristics(gattService);
+                    break;
+                }
+            }
+        }
+        if(canceled)
+            return;
+        if(delegate==null || readCharacteristic==null || writeCharacteristic==null) {
+            for (BluetoothGattService gattService : gatt.getServices()) {
+                Log.d(TAG, "service "+gattService.getUuid());
+                for(BluetoothGattCharacteristic characteristic : gattService.getCharacteristics())
+                    Log.d(TAG, "characteristic "+characteristic.getUuid());
+            }
+            onSerialConnectError(new IOException("no serial profile found"));
+            return;
+        }
+        if(sync)
+            connectCharacteristics2(gatt);
+    }
+
+    private DeviceDelegate createDelegate(UUID service) {
+        SerialProfile profile = profiles.get(service);
+        if (profile == null)
+            return null;
+        if (profile.flowControl == SerialProfile.FlowControl.TelitCredits)
+            return new TelitDelegate(profile);
+        return new ProfileDelegate(profile);
+    }
+
+    /**
+     * service from previous connect, if characteristics and CCCD mode still match
+     */
+    private BluetoothGattService getCachedService(BluetoothGatt gatt) {
+        if(cached == null)
+            return null;
+        BluetoothGattService service = gatt.getService(cached.service);
+        if(service != null && profiles.get(service.getUuid()) != null) {
+            BluetoothGattCharacteristic read = service.getCharacteristic(cached.read);
+            BluetoothGattCharacteristic write = service.getCharacteristic(cached.write);
+            if(read != null && write != null && ((read.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) == cached.indicate)
+                return service;
+        }
+        Log.d(TAG, "cached service mismatch, full lookup");
+        cached = null;
+        return null;
+    }
+
+    private void connectCharacteristics2(BluetoothGatt gatt) {
+        if (cached != null && cached.mtu <= DEFAULT_MTU) {
+            Log.d(TAG, "cached mtu "+cached.mtu+", skip MTU request");
+            connectLinkParameters(gatt);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Log.d(TAG, "request max MTU");
+            scheduler.submit(GattScheduler.Op.Mtu, 0, () -> gatt.requestMtu(MAX_MTU));
+            if (cached != null) {
+                // MTU is known, so the following requests are queued right away. The scheduler still completes
+                // the MTU exchange before the descriptor write, so data writes use the negotiated payload size
+                Log.d(TAG, "cached mtu "+cached.mtu+", continue without waiting for MTU");
+                connectLinkParameters(gatt);
+            }
+            // else continues asynchronously in onMtuChanged
+        } else {
+            connectCharacteristics3(gatt);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        Log.d(TAG,"mtu size "+mtu+", status="+status);
+        scheduler.complete(GattScheduler.Op.Mtu);
+        if(status ==  BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+            engine.setPayloadSize(mtu - 3);
+            Log.d(TAG, "payload size "+(mtu - 3));
+        }
+        if(canceled)
+            return;
+        if(!connected)
+            connectLinkParameters(gatt);
+        else
+            onSerialLinkParameters();
+    }
+
+    /**
+     * shorter connection interval and 2M PHY, both optional.
+     * If rejected by the peer, the connection continues with previous parameters.
+     * Only the first call per connect continues, a late onMtuChanged after the MTU timeout is ignored,
+     * else PHY request and descriptor write would be issued twice.
+     */
+    private void connectLinkParameters(BluetoothGatt gatt) {
+        if(!linkParametersRequested.compareAndSet(false, true))
+            return;
+        scheduler.submit(GattScheduler.Op.Priority, 0, () -> {
+            if(!gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH))
+                return false;
+            priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+            Log.d(TAG, "request connection priority high");
+            return true;
+        });
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (cached != null && cached.txPhy != BluetoothDevice.PHY_LE_2M) {
+            Log.d(TAG, "cached phy "+cached.txPhy+", skip 2M phy request");
+            connectCharacteristics3(gatt);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && adapter != null && adapter.isLe2MPhySupported()) {
+            Log.d(TAG, "request 2M phy");
+            phyPending = cached == null; // peer accepted 2M before, so connect does not wait for the update
+            scheduler.submit(GattScheduler.Op.Phy, 0, () -> {
+                gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                return true;
+            });
+            if (!phyPending)
+                connectCharacteristics3(gatt);
+            // else continues asynchronously in onPhyUpdate, or onGattOperationFailed if the peer ignores the request
+        } else {
+            connectCharacteristics3(gatt);
+        }
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        Log.d(TAG, "phy "+txPhy+"/"+rxPhy+", status="+status);
+        scheduler.complete(GattScheduler.Op.Phy);
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+        if(canceled)
+            return;
+        if(phyPending) {
+            phyPending = false;
+            if(status != BluetoothGatt.GATT_SUCCESS)
+                Log.d(TAG, "2M phy rejected, keep 1M");
+            connectCharacteristics3(gatt);
+        } else if(connected) {
+            onSerialLinkParameters();
+        }
+    }
+
+    /**
+     * hidden API, but called on most devices. interval in 1.25 ms units.
+     */
+    public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        Log.d(TAG, "connection updated, interval "+interval+", latency "+latency+", status="+status);
+        if(status != BluetoothGatt.GATT_SUCCESS)
+            return;
+        intervalMicros = interval * 1250;
+        this.latency = latency;
+        if(connected && !canceled)
+            onSerialLinkParameters();
+    }
+
+    private void connectCharacteristics3(BluetoothGatt gatt) {
+        int writeProperties = writeCharacteristic.getProperties();
+        if((writeProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE +     // Microbit,HM10-clone have WRITE
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) ==0) { // HM10,TI uart,Telit have only WRITE_NO_RESPONSE
+            onSerialConnectError(new IOException("write characteristic not writable"));
+            return;
+        }
+        if(!gatt.setCharacteristicNotification(readCharacteristic,true)) {
+            onSerialConnectError(new IOException("no notification for read characteristic"));
+            return;
+        }
+        BluetoothGattDescriptor readDescriptor = readCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
+        if(readDescriptor == null) {
+            onSerialConnectError(new IOException("no CCCD descriptor for read characteristic"));
+            return;
+        }
+        int readProperties = readCharacteristic.getProperties();
+        if((readProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+            Log.d(TAG, "enable read indication");
+            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        }else if((readProperties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            Log.d(TAG, "enable read notification");
+            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        } else {
+            onSerialConnectError(new IOException("no indication/notification for read characteristic ("+readProperties+")"));
+            return;
+        }
+        Log.d(TAG,"writing read characteristic descriptor");
+        scheduler.submit(GattScheduler.Op.Descriptor, 0, () -> gatt.writeDescriptor(readDescriptor));
+        // continues asynchronously in onDescriptorWrite()
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        scheduler.complete(GattScheduler.Op.Descriptor);
+        if(canceled || delegate == null) // delegate is null until services discovered and during reconnect
+            return;
+        delegate.onDescriptorWrite(gatt, descriptor, status);
+        if(canceled)
+            return;
+        if(descriptor.getCharacteristic() == readCharacteristic) {
+            Log.d(TAG,"writing read characteristic descriptor finished, status="+status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                onSerialConnectError(new IOException("write descriptor failed"));
+            } else {
+                if(pipelineWindow > 1 && delegate.canPipeline(writeCharacteristic)) {
+                    writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    engine.setWindow(pipelineWindow);
+                    Log.d(TAG, "pipelined write, window="+pipelineWindow);
+                }
+                // onCharacteristicChanged with incoming data can happen after writeDescriptor(ENABLE_INDICATION/NOTIFICATION)
+                // before confirmed by this method, so receive data can be shown before device is shown as 'Connected'.
+                connectMillis = (int)((System.nanoTime() - connectStartNanos) / 1_000_000);
+                Log.d(TAG, "connect time "+connectMillis+" ms, "+(cached != null ? "cached" : "full lookup"));
+                deviceCache.put(device.getAddress(), new DeviceCache.Entry(
+                        readCharacteristic.getService().getUuid(), readCharacteristic.getUuid(), writeCharacteristic.getUuid(),
+                        (readCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0, mtu, txPhy));
+                onSerialConnect();
+                connected = true;
+                Log.d(TAG, "connected");
+                onSerialLinkParameters();
+                engine.writeNext(); // writes kept from before reconnect
+            }
+        }
+    }
+
+    /*
+     * read
+     */
+    @SuppressWarnings("deprecation") // only called before API 33
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        // value is replaced by the next notification, so read it only once
+        onCharacteristicChanged(gatt, characteristic, characteristic.getValue());
+    }
+
+    /**
+     * since API 33 value is passed per notification, instead of using the shared characteristic value
+     */
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        if(canceled || delegate == null)
+            return;
+        delegate.onCharacteristicChanged(gatt, characteristic, value);
+        if(canceled)
+            return;
+        if(characteristic == readCharacteristic) { // NOPMD - test object identity
+            long start = System.nanoTime();
+            engine.onReceived(value.length, start);
+            SessionRecorder recorder = this.recorder;
+            if(recorder != null)
+                recorder.record(SessionRecorder.RX, value, start);
+            onSerialRead(value);
+            if(Trace.ENABLED) Trace.record(Trace.READ, value.length);
+        }
+    }
+
+    /*
+     * write
+     */
+    void write(byte[] data) throws IOException {
+        write(data, WriteQueue.Priority.Control, WriteQueue.Overflow.Block, WriteQueue.NO_KEY);
+    }
+
+    /**
+     * @param priority  Control writes are sent before queued Telemetry writes
+     * @param overflow  policy if write queue is full. Block waits up to WRITE_BLOCK_TIMEOUT
+     * @param key       with WriteQueue.Overflow.LatestValue a queued write with same key is replaced
+     * @return handle completed when the write is confirmed by onCharacteristicWrite or dropped
+     */
+    WriteHandle write(byte[] data, WriteQueue.Priority priority, WriteQueue.Overflow overflow, int key) throws IOException {
+        if(canceled || !connected || writeCharacteristic == null)
+            throw new IOException("not connected");
+        if(Trace.ENABLED) Trace.record(Trace.WRITE_QUEUED, data.length, engine.getQueued());
+        // data is sliced into payload size packets without copy, so caller must not modify it afterwards
+        return engine.write(data, priority, overflow, key); // continues asynchronously in onCharacteristicWrite()
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if(gatt != this.gatt)
+            return; // callback of gatt closed by reconnect
+        if(characteristic == writeCharacteristic) // NOPMD - test object identity
+            scheduler.complete(GattScheduler.Op.Write);
+        else
+            scheduler.complete(GattScheduler.Op.CreditWrite);
+        if(canceled || writeCharacteristic == null)
+            return;
+        if(status != BluetoothGatt.GATT_SUCCESS) {
+            if(connected)
+                onSerialIoError(new IOException("write failed"));
+            else
+                onSerialConnectError(new IOException("write failed"));
+            return;
+        }
+        delegate.onCharacteristicWrite(gatt, characteristic, status); // also before connected, for read credits granted while connecting
+        if(canceled)
+            return;
+        if(characteristic == writeCharacteristic && connected) { // NOPMD - test object identity
+            if(Trace.ENABLED) Trace.record(Trace.WRITE_DONE, status);
+            engine.onSent();
+        }
+    }
+
+    /**
+     * PacketLink.send, called by SerialEngine.writeNext() outside of its queue lock
+     */
+    private int send(byte[] data) {
+        if(!scheduler.startWrite())
+            return PacketLink.DEFERRED; // other GATT operation first, continues in onWritable()
+        int status = startWrite(data);
+        if(status == BluetoothStatusCodes.SUCCESS) {
+            if(Trace.ENABLED) Trace.record(Trace.WRITE_STARTED, data.length);
+            SessionRecorder recorder = this.recorder;
+            if(recorder != null)
+                recorder.record(SessionRecorder.TX, data, System.nanoTime());
+            return PacketLink.SENT;
+        }
+        scheduler.writeNotStarted();
+        if(Trace.ENABLED) Trace.record(Trace.WRITE_BUSY, status);
+        // busy while previous pipelined write not yet confirmed, engine retries on next onCharacteristicWrite,
+        // else after a delay posted to the SerialIo thread by scheduleFlush(). Before API 33 every failure looks busy
+        if(status == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY || Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU)
+            return PacketLink.BUSY;
+        return PacketLink.FAILED;
+    }
+
+    /**
+     * returns BluetoothStatusCodes, before API 33 only SUCCESS or ERROR_GATT_WRITE_REQUEST_BUSY
+     */
+    @SuppressWarnings("deprecation") // setValue + writeCharacteristic(characteristic) deprecated with API 33
+    private int startWrite(byte[] data) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            // does not use shared characteristic value, so pipelined writes cannot overwrite each other
+            return gatt.writeCharacteristic(writeCharacteristic, data, writeCharacteristic.getWriteType());
+        } else {
+            writeCharacteristic.setValue(data);
+            return gatt.writeCharacteristic(writeCharacteristic) ? BluetoothStatusCodes.SUCCESS : BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+        }
+    }
+
+    private void scheduleFlush(long holdNanos) {
+        if(Trace.ENABLED) Trace.record(Trace.FLUSH_HOLD, (int)(holdNanos / 1000));
+        handler.removeCallbacks(flushRunnable);
+        handler.postDelayed(flushRunnable, (holdNanos + 999_999) / 1_000_000); // Handler has ms resolution
+    }
+
+    private void onGattOperationFailed(GattScheduler.Op op, boolean timeout) {
+        if(canceled)
+            return;
+        switch (op) {
+            case Mtu:
+                if(!timeout) {
+                    onSerialConnectError(new IOException("request MTU failed"));
+                } else if(!connected && gatt != null) {
+                    Log.d(TAG, "request MTU timeout, keep "+mtu);
+                    connectLinkParameters(gatt);
+                }
+                break;
+            case Descriptor:
+                onSerialConnectError(new IOException(timeout ? "write descriptor timeout" : "CCCD descriptor not writable"));
+                break;
+            case Priority:
+                Log.d(TAG, "request connection priority failed");
+                break;
+            case Phy:
+                if(phyPending && gatt != null) {
+                    Log.d(TAG, "phy update timeout, keep 1M");
+                    phyPending = false;
+                    connectCharacteristics3(gatt);
+                }
+                break;
+            case CreditWrite:
+                if(connected)
+                    onSerialIoError(new IOException("write read credits failed"));
+                else
+                    onSerialConnectError(new IOException("write read credits failed"));
+                break;
+            default: // Rssi, Write
+                Log.d(TAG, op+(timeout ? " timeout" : " failed"));
+                break;
+        }
+    }
+
+    /**
+     * SerialListener
+     */
+    private void onSerialConnect() {
+        if (listener != null)
+            listener.onSerialConnect();
+    }
+
+    private void onSerialConnectError(Exception e) {
+        canceled = true;
+        if (cached != null && device != null)
+            deviceCache.remove(device.getAddress()); // next connect with full lookup
+        if (listener != null)
+            listener.onSerialConnectError(e);
+    }
+
+    private void onSerialLinkParameters() {
+        if (listener != null)
+            listener.onSerialLinkParameters(getLinkParameters());
+    }
+
+    private void onSerialRead(byte[] data) {
+        if (listener != null)
+            listener.onSerialRead(data);
+    }
+
+    private void onSerialIoError(Exception e) {
+        canceled = true;
+        if (listener != null)
+            listener.onSerialIoError(e);
+    }
+
+    private void onSerialLinkLost(Exception e) {
+        canceled = true;
+        if (listener != null)
+            listener.onSerialLinkLost(e);
+    }
+
+    /**
+     * device delegates
+     */
+
+    /**
+     * characteristics as in profile. If read and write differ, they are swapped when only the read
+     * characteristic is writable (WRITE or WRITE_NO_RESPONSE), as nrf uart rx/tx direction differs between vendors.
+     * If both are writable, the one without notify is used for write, like microchip uart.
+     * Without separate write characteristic, the read characteristic is also used for write.
+     */
+    private class ProfileDelegate extends DeviceDelegate {
+        private static final int WRITE_PROPERTIES = BluetoothGattCharacteristic.PROPERTY_WRITE |    // Microbit,HM10-clone have WRITE
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;                         // HM10,TI uart,Telit have only WRITE_NO_RESPONSE
+        private static final int NOTIFY_PROPERTIES = BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE;
+
+        ProfileDelegate(SerialProfile profile) {
+            super(profile);
+        }
+
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService) {
+            Log.d(TAG, "service "+profile.name);
+            BluetoothGattCharacteristic read = gattService.getCharacteristic(profile.read);
+            BluetoothGattCharacteristic write = gattService.getCharacteristic(profile.write);
+            if (write == null)
+                write = read;
+            if (read != null && write != read) {
+                int readProp = read.getProperties();
+                int writeProp = write.getProperties();
+                boolean readWrite = (readProp & WRITE_PROPERTIES) != 0;
+                boolean writeWrite = (writeProp & WRITE_PROPERTIES) != 0;
+                boolean readNotify = (readProp & NOTIFY_PROPERTIES) != 0;
+                boolean writeNotify = (writeProp & NOTIFY_PROPERTIES) != 0;
+                Log.d(TAG, "characteristic properties " + readProp + "/" + writeProp);
+                if (!readWrite && !writeWrite) {
+                    onSerialConnectError(new IOException("no write characteristic (" + readProp + "/" + writeProp + ")"));
+                    return true;
+                }
+                if (readWrite && writeWrite && readNotify == writeNotify) {
+                    onSerialConnectError(new IOException("multiple write characteristics (" + readProp + "/" + writeProp + ")"));
+                    return true;
+                }
+                if (readWrite && (!writeWrite || writeNotify)) {
+                    BluetoothGattCharacteristic c = read;
+                    read = write;
+                    write = c;
+                }
+            }
+            readCharacteristic = read;
+            writeCharacteristic = write;
+            setWriteType(write);
+            return true;
+        }
+
+        /**
+         * characteristics resolved on previous connect, already checked by getCachedService()
+         */
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService, DeviceCache.Entry cached) {
+            Log.d(TAG, "service "+profile.name+", cached characteristics");
+            readCharacteristic = gattService.getCharacteristic(cached.read);
+            writeCharacteristic = gattService.getCharacteristic(cached.write);
+            setWriteType(writeCharacteristic);
+            return true;
+        }
+
+        private void setWriteType(BluetoothGattCharacteristic write) {
+            if (write != null && profile.writeType == SerialProfile.WriteType.Response)
+                write.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            if (write != null && profile.writeType == SerialProfile.WriteType.NoResponse)
+                write.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+    }
+
+    private class TelitDelegate extends DeviceDelegate {
+        private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
+        private final CreditController readCredits = new CreditController(); // guarded by itself
+        private final AtomicInteger writeCredits = new AtomicInteger(); // checked under engine queue lock by canWrite()
+
+        TelitDelegate(SerialProfile profile) {
+            super(profile);
+        }
+
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService) {
+            Log.d(TAG, "service "+profile.name);
+            synchronized (readCredits) {
+                readCredits.reset();
+            }
+            writeCredits.set(0);
+            readCharacteristic = gattService.getCharacteristic(profile.read);
+            writeCharacteristic = gattService.getCharacteristic(profile.write);
+            readCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX_CREDITS);
+            writeCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX_CREDITS);
+            if (readCharacteristic == null) {
+                onSerialConnectError(new IOException("read characteristic not found"));
+                return false;
+            }
+            if (writeCharacteristic == null) {
+                onSerialConnectError(new IOException("write characteristic not found"));
+                return false;
+            }
+            if (readCreditsCharacteristic == null) {
+                onSerialConnectError(new IOException("read credits characteristic not found"));
+                return false;
+            }
+            if (writeCreditsCharacteristic == null) {
+                onSerialConnectError(new IOException("write credits characteristic not found"));
+                return false;
+            }
+            if (!gatt.setCharacteristicNotification(readCreditsCharacteristic, true)) {
+                onSerialConnectError(new IOException("no notification for read credits characteristic"));
+                return false;
+            }
+            BluetoothGattDescriptor readCreditsDescriptor = readCreditsCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
+            if (readCreditsDescriptor == null) {
+                onSerialConnectError(new IOException("no CCCD descriptor for read credits characteristic"));
+                return false;
+            }
+            readCreditsDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            Log.d(TAG,"writing read credits characteristic descriptor");
+            scheduler.submit(GattScheduler.Op.Descriptor, 0, () -> gatt.writeDescriptor(readCreditsDescriptor));
+            return false;
+            // continues asynchronously in connectCharacteristics2
+        }
+
+        @Override
+        void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if(descriptor.getCharacteristic() == readCreditsCharacteristic) {
+                Log.d(TAG, "writing read credits characteristic descriptor finished, status=" + status);
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    onSerialConnectError(new IOException("write credits descriptor failed"));
+                } else {
+                    connectCharacteristics2(gatt);
+                }
+            }
+            if(descriptor.getCharacteristic() == readCharacteristic) {
+                Log.d(TAG, "writing read characteristic descriptor finished, status=" + status);
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    readCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    int credits;
+                    synchronized (readCredits) {
+                        credits = readCredits.start(System.nanoTime());
+                    }
+                    grantReadCredits(credits);
+                }
+            }
+        }
+
+        @Override
+        void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+            if(characteristic == readCreditsCharacteristic) { // NOPMD - test object identity
+                int newCredits = value[0];
+                int credits = writeCredits.addAndGet(newCredits);
+                if(Trace.ENABLED) Trace.record(Trace.WRITE_CREDITS, newCredits, credits);
+                engine.writeNext(); // resume blocked write
+            }
+            if(characteristic == readCharacteristic) { // NOPMD - test object identity
+                Pipeline.Sink sink = readSink;
+                int credits;
+                synchronized (readCredits) {
+                    credits = readCredits.onRead(System.nanoTime(), sink != null ? sink.getDepth() : 0);
+                }
+                grantReadCredits(credits);
+            }
+        }
+
+        @Override
+        void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if(characteristic == writeCharacteristic) { // NOPMD - test object identity
+                writeCredits.updateAndGet(credits -> credits > 0 ? credits - 1 : 0);
+            }
+            if(characteristic == writeCreditsCharacteristic) { // NOPMD - test object identity
+                int credits;
+                synchronized (readCredits) {
+                    credits = readCredits.onGrantDone(System.nanoTime());
+                }
+                grantReadCredits(credits);
+            }
+        }
+
+        @Override
+        void onReadDrained(long waitNanos, int backlog) {
+            int credits;
+            synchronized (readCredits) {
+                credits = readCredits.onDrained(waitNanos, backlog, System.nanoTime());
+            }
+            grantReadCredits(credits);
+        }
+
+        @Override
+        CreditController getReadCredits() {
+            return readCredits;
+        }
+
+        @Override
+        boolean canPipeline(BluetoothGattCharacteristic c) {
+            return false; // TIO flow control by write credits
+        }
+
+        @Override
+        boolean canWrite() {
+            if(writeCredits.get() > 0)
+                return true;
+            if(Trace.ENABLED) Trace.record(Trace.NO_WRITE_CREDIT, 0);
+            return false;
+        }
+
+        @Override
+        void disconnect() {
+            readCreditsCharacteristic = null;
+            writeCreditsCharacteristic = null;
+        }
+
+        /**
+         * sent as GattScheduler operation, so it is queued with data writes instead of failing as busy.
+         * CreditController keeps only one grant in flight, credits consumed meanwhile are batched into the next one.
+         */
+        private void grantReadCredits(int credits) {
+            if(credits == 0)
+                return;
+            byte[] data = new byte[] {(byte)credits};
+            if(Trace.ENABLED) Trace.record(Trace.READ_CREDITS, credits, readCredits.getWindow());
+            scheduler.submit(GattScheduler.Op.CreditWrite, 0, () -> startCreditWrite(data));
+        }
+
+        @SuppressWarnings("deprecation") // setValue + writeCharacteristic(characteristic) deprecated with API 33
+        private boolean startCreditWrite(byte[] data) {
+            BluetoothGattCharacteristic c = writeCreditsCharacteristic;
+            if(c == null || gatt == null)
+                return false;
+            c.setValue(data);
+            return gatt.writeCharacteristic(c);
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * replay SessionRecorder files into a SerialListener, to reproduce traffic without device.
+ * Has no Android dependencies, so it also drives the benchmark module on a desktop JVM.
+ *   - onSerialConnect first, then each rx record as onSerialRead(byte[]), tx records are only counted
+ *   - end of recording is reported with onSerialIoError like a lost connection, also a corrupt file
+ *   - speed 1 replays with recorded timing, 10 ten times faster, 0 as fast as possible
+ *
+ * start() replays in own thread, run() in the calling thread. Each instance replays once.
+ */
+final class SessionReplay {
+
+    private final File[] files;
+    private final double speed;
+    private volatile boolean running = true;
+    private volatile long rxRecords, rxBytes, txRecords, txBytes; // only written by replay thread
+    private Thread thread;
+
+    /**
+     * @param files  replayed in given order, e.g. rotated files of one session sorted by name
+     */
+    SessionReplay(double speed, File... files) {
+        this.speed = speed;
+        this.files = Arrays.copyOf(files, files.length);
+    }
+
+    void start(SerialListener listener) {
+        thread = new Thread(() -> run(listener), "replay");
+        thread.start();
+    }
+
+    /**
+     * no more callbacks after return
+     */
+    void stop() {
+        running = false;
+        if(thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    void run(SerialListener listener) {
+        listener.onSerialConnect();
+        long startNanos = System.nanoTime();
+        long firstNanos = 0;
+        boolean first = true;
+        try {
+            for(File file : files) {
+                ByteBuffer buffer = map(file);
+                while(running && buffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+                    long nanos = buffer.getLong();
+                    byte direction = buffer.get();
+                    int length = buffer.getShort() & 0xffff;
+                    if(length > buffer.remaining())
+                        throw new IOException("truncated record in " + file.getName());
+                    if(direction == SessionRecorder.TX) {
+                        buffer.position(buffer.position() + length);
+                        txRecords++;
+                        txBytes += length;
+                        continue;
+                    }
+                    byte[] data = new byte[length];
+                    buffer.get(data);
+                    if(speed > 0) {
+                        if(first) {
+                            firstNanos = nanos;
+                            first = false;
+                        }
+                        long due = startNanos + (long) ((nanos - firstNanos) / speed);
+                        long wait;
+                        while(running && (wait = due - System.nanoTime()) > 0)
+                            LockSupport.parkNanos(wait);
+                    }
+                    if(!running)
+                        break;
+                    listener.onSerialRead(data);
+                    rxRecords++;
+                    rxBytes += length;
+                }
+            }
+            if(running)
+                listener.onSerialIoError(new EOFException("end of recording"));
+        } catch (IOException e) {
+            if(running)
+                listener.onSerialIoError(e);
+        }
+        running = false;
+    }
+
+    long getRxRecords() {
+        return rxRecords;
+    }
+    long getRxBytes() {
+        return rxBytes;
+    }
+    long getTxRecords() {
+        return txRecords;
+    }
+    long getTxBytes() {
+        return txBytes;
+    }
+
+    /**
+     * @return buffer positioned after the header
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after close
+            byte[] magic = new byte[SessionRecorder.MAGIC.length];
+            if(buffer.remaining() >= SessionRecorder.HEADER_SIZE)
+                buffer.get(magic);
+            if(!Arrays.equals(magic, SessionRecorder.MAGIC))
+                throw new IOException(file.getName() + " is not a session recording");
+            buffer.position(SessionRecorder.HEADER_SIZE);
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * per device throughput, reported by SerialService.getSessionStats
+ */
+final class SessionStats {
+
+    final String name;
+    final boolean primary;
+    final boolean connected;      // false while reconnecting
+    final long txBytesPerSecond;  // confirmed by onCharacteristicWrite
+    final long rxBytesPerSecond;
+
+    SessionStats(String name, boolean primary, boolean connected, long txBytesPerSecond, long rxBytesPerSecond) {
+        this.name = name;
+        this.primary = primary;
+        this.connected = connected;
+        this.txBytesPerSecond = txBytesPerSecond;
+        this.rxBytesPerSecond = rxBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return name + (primary ? "" : " (follower)")
+                + (connected ? "" : ", reconnecting")
+                + ", tx " + txBytesPerSecond + " B/s"
+                + ", rx " + rxBytesPerSecond + " B/s";
+    }
+}
@@ -0,0 +1,18 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.text.DecimalFormat;
+
+/**
+ * sensor frame periodically sent by TerminalFragment: STX rssi,yaw,roll ETX
+ */
+final class TelemetryFrame {
+
+    static final char STX = (char) 2;
+    static final char ETX = (char) 3;
+
+    private TelemetryFrame() {}
+
+    static String format(DecimalFormat df, int rssi, double yaw, double roll) {
+        return STX + Integer.toString(rssi) + "," + df.format(yaw) + "," + df.format(roll) + ETX;
+    }
+}
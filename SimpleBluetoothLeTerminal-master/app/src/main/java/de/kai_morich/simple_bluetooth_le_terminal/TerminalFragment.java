@@ -1,348 +1,796 @@
-package de.kai_morich.simple_bluetooth_le_terminal;
-
-import android.app.Activity;
-import android.app.AlertDialog;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.content.ComponentName;
-import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Looper;
-import android.text.Editable;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.method.ScrollingMovementMethod;
-import android.text.style.ForegroundColorSpan;
-import android.view.LayoutInflater;
-import android.view.Menu;
-import android.view.MenuInflater;
-import android.view.MenuItem;
-import android.view.View;
-import android.view.ViewGroup;
-import android.widget.TextView;
-import android.widget.Toast;
-
-import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
-import androidx.fragment.app.Fragment;
-
-import java.util.ArrayDeque;
-import java.text.DecimalFormat;
-
-public class TerminalFragment extends Fragment implements ServiceConnection, SerialListener {
-
-    private static final char STX = (char) 2;
-    private static final char ETX = (char) 3;
-    private enum Connected { False, Pending, True }
-
-    private String deviceAddress;
-    private SerialService service;
-    private BluetoothGatt gatt;
-
-    private TextView receiveText;
-    private TextView sendText;
-    private TextUtil.HexWatcher hexWatcher;
-
-    private Connected connected = Connected.False;
-    private boolean initialStart = true;
-    private boolean hexEnabled = false;
-    private boolean pendingNewline = false;
-    private String newline = TextUtil.newline_crlf;
-    private Magnetometer magnetometer;
-    private Accelerometer accelerometer;
-    private PeriodicRssiReader rssiReader;
-    private String magnetometerData;
-    private String accelerometerData;
-    private String sensorData;
-    private SerialSocket curr_socket;
-    private Handler handler;
-    private Runnable sendDataRunnable;
-    private DecimalFormat df;
-    private Orientation orientation;
-        /*
-     * Lifecycle
-     */
-    @Override
-    public void onCreate(@Nullable Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        setHasOptionsMenu(true);
-        setRetainInstance(true);
-        deviceAddress = getArguments().getString("device");
-        df = new DecimalFormat("#.##");
-        magnetometer = MainActivity.getMagnetometer();
-        accelerometer = MainActivity.getAccelerometer();
-        orientation = MainActivity.getOrientationSensor();
-        magnetometer.setListener(new Magnetometer.Listener() {
-            @Override
-            public void onTranslation(float tx, float ty) {
-                magnetometerData = df.format(tx) + "," + df.format(ty);
-            }
-        });
-        accelerometer.setListener(new Accelerometer.Listener() {
-            @Override
-            public void onTranslation(float tx, float ty) {
-                accelerometerData = df.format(tx) + "," + df.format(ty);
-            }
-        });
-
-        this.handler = new Handler(Looper.getMainLooper());
-        this.sendDataRunnable = new Runnable() {
-            @SuppressWarnings("MissingPermission")
-            @Override
-            public void run() {
-                if (connected == Connected.True) {
-                    sensorData = STX + Integer.toString(curr_socket.getRssi()) + "," + df.format(orientation.yaw()) + "," + df.format(orientation.roll()) + ETX;
-                    send(sensorData);
-                    // Schedule next read after a delay (adjust as needed)
-                    handler.postDelayed(this, 200); // Read RSSI every 1 second
-                }
-            }
-        };
-
-    }
-
-    @Override
-    public void onDestroy() {
-        if (connected != Connected.False)
-            disconnect();
-        getActivity().stopService(new Intent(getActivity(), SerialService.class));
-        super.onDestroy();
-    }
-
-    @Override
-    public void onStart() {
-        super.onStart();
-        if(service != null)
-            service.attach(this);
-        else
-            getActivity().startService(new Intent(getActivity(), SerialService.class)); // prevents service destroy on unbind from recreated activity caused by orientation change
-    }
-
-    @Override
-    public void onStop() {
-        if(service != null && !getActivity().isChangingConfigurations())
-            service.detach();
-        super.onStop();
-    }
-
-    @SuppressWarnings("deprecation") // onAttach(context) was added with API 23. onAttach(activity) works for all API versions
-    @Override
-    public void onAttach(@NonNull Activity activity) {
-        super.onAttach(activity);
-        getActivity().bindService(new Intent(getActivity(), SerialService.class), this, Context.BIND_AUTO_CREATE);
-    }
-
-    @Override
-    public void onDetach() {
-        try { getActivity().unbindService(this); } catch(Exception ignored) {}
-        super.onDetach();
-    }
-
-    @Override
-    public void onResume() {
-        super.onResume();
-        if(initialStart && service != null) {
-            initialStart = false;
-            getActivity().runOnUiThread(this::connect);
-        }
-    }
-
-    @Override
-    public void onServiceConnected(ComponentName name, IBinder binder) {
-        service = ((SerialService.SerialBinder) binder).getService();
-        service.attach(this);
-        if(initialStart && isResumed()) {
-            initialStart = false;
-            getActivity().runOnUiThread(this::connect);
-        }
-    }
-
-    @Override
-    public void onServiceDisconnected(ComponentName name) {
-        service = null;
-    }
-
-    /*
-     * UI
-     */
-    @Override
-    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-        View view = inflater.inflate(R.layout.fragment_terminal, container, false);
-        receiveText = view.findViewById(R.id.receive_text);                          // TextView performance decreases with number of spans
-        receiveText.setTextColor(getResources().getColor(R.color.colorRecieveText)); // set as default color to reduce number of spans
-        receiveText.setMovementMethod(ScrollingMovementMethod.getInstance());
-        sendText = view.findViewById(R.id.send_text);
-        hexWatcher = new TextUtil.HexWatcher(sendText);
-        hexWatcher.enable(hexEnabled);
-        sendText.addTextChangedListener(hexWatcher);
-        sendText.setHint(hexEnabled ? "HEX mode" : "");
-
-        View sendBtn = view.findViewById(R.id.send_btn);
-        sendBtn.setOnClickListener(v -> send(sendText.getText().toString()));
-        return view;
-    }
-
-    @Override
-    public void onCreateOptionsMenu(@NonNull Menu menu, MenuInflater inflater) {
-        inflater.inflate(R.menu.menu_terminal, menu);
-        menu.findItem(R.id.hex).setChecked(hexEnabled);
-    }
-
-    @Override
-    public boolean onOptionsItemSelected(MenuItem item) {
-        int id = item.getItemId();
-        if (id == R.id.clear) {
-            receiveText.setText("");
-            return true;
-        } else if (id == R.id.newline) {
-            String[] newlineNames = getResources().getStringArray(R.array.newline_names);
-            String[] newlineValues = getResources().getStringArray(R.array.newline_values);
-            int pos = java.util.Arrays.asList(newlineValues).indexOf(newline);
-            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
-            builder.setTitle("Newline");
-            builder.setSingleChoiceItems(newlineNames, pos, (dialog, item1) -> {
-                newline = newlineValues[item1];
-                dialog.dismiss();
-            });
-            builder.create().show();
-            return true;
-        } else if (id == R.id.hex) {
-            hexEnabled = !hexEnabled;
-            sendText.setText("");
-            hexWatcher.enable(hexEnabled);
-            sendText.setHint(hexEnabled ? "HEX mode" : "");
-            item.setChecked(hexEnabled);
-            return true;
-        } else {
-            return super.onOptionsItemSelected(item);
-        }
-    }
-
-    /*
-     * Serial + UI
-     */
-    private void connect() {
-        try {
-            BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
-            status("connecting...");
-            connected = Connected.Pending;
-            SerialSocket socket = new SerialSocket(getActivity().getApplicationContext(), device);
-            curr_socket = socket;
-            service.connect(socket);
-            gatt = socket.getGatt();
-        } catch (Exception e) {
-            onSerialConnectError(e);
-        }
-    }
-
-    private void disconnect() {
-        connected = Connected.False;
-        service.disconnect();
-    }
-
-    private void send(String str) {
-        if(connected != Connected.True) {
-            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
-            return;
-        }
-        try {
-            String msg;
-            byte[] data;
-            if(hexEnabled) {
-                StringBuilder sb = new StringBuilder();
-                TextUtil.toHexString(sb, TextUtil.fromHexString(str));
-                TextUtil.toHexString(sb, newline.getBytes());
-                msg = sb.toString();
-                data = TextUtil.fromHexString(msg);
-            } else {
-                msg = str;
-                data = (str + newline).getBytes();
-            }
-            msg = sensorData;
-            data = (sensorData + newline).getBytes();
-            SpannableStringBuilder spn = new SpannableStringBuilder(msg + '\n');
-            spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorSendText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            receiveText.append(spn);
-            service.write(data);
-        } catch (Exception e) {
-            onSerialIoError(e);
-        }
-    }
-
-    private void receive(ArrayDeque<byte[]> datas) {
-        SpannableStringBuilder spn = new SpannableStringBuilder();
-        for (byte[] data : datas) {
-            if (hexEnabled) {
-                spn.append(TextUtil.toHexString(data)).append('\n');
-            } else {
-                String msg = new String(data);
-                if (newline.equals(TextUtil.newline_crlf) && msg.length() > 0) {
-                    // don't show CR as ^M if directly before LF
-                    msg = msg.replace(TextUtil.newline_crlf, TextUtil.newline_lf);
-                    // special handling if CR and LF come in separate fragments
-                    if (pendingNewline && msg.charAt(0) == '\n') {
-                        if(spn.length() >= 2) {
-                            spn.delete(spn.length() - 2, spn.length());
-                        } else {
-                            Editable edt = receiveText.getEditableText();
-                            if (edt != null && edt.length() >= 2)
-                                edt.delete(edt.length() - 2, edt.length());
-                        }
-                    }
-                    pendingNewline = msg.charAt(msg.length() - 1) == '\r';
-                }
-                spn.append(TextUtil.toCaretString(msg, newline.length() != 0));
-            }
-        }
-        receiveText.append(spn);
-    }
-
-    private void status(String str) {
-        SpannableStringBuilder spn = new SpannableStringBuilder(str + '\n');
-        spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorStatusText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        receiveText.append(spn);
-    }
-
-    /*
-     * SerialListener
-     */
-    @Override
-    public void onSerialConnect() {
-        // start
-        rssiReader = new PeriodicRssiReader(gatt);
-        rssiReader.startReadingRssi();
-        handler.post(sendDataRunnable);
-        status("connected");
-        connected = Connected.True;
-    }
-
-    @Override
-    public void onSerialConnectError(Exception e) {
-        status("connection failed: " + e.getMessage());
-        disconnect();
-    }
-
-    @Override
-    public void onSerialRead(byte[] data) {
-        ArrayDeque<byte[]> datas = new ArrayDeque<>();
-        datas.add(data);
-        receive(datas);
-    }
-
-    public void onSerialRead(ArrayDeque<byte[]> datas) {
-        receive(datas);
-    }
-
-    @Override
-    public void onSerialIoError(Exception e) {
-        status("connection lost: " + e.getMessage());
-        disconnect();
-    }
-
-}
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.method.ScrollingMovementMethod;
+import android.text.style.ForegroundColorSpan;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.text.DecimalFormat;
+
+public class TerminalFragment extends Fragment implements ServiceConnection, SerialListener {
+
+    private static final int TELEMETRY_KEY = 1; // only the latest queued sensor frame is sent
+    private static final int METRICS_INTERVAL = 500; // ms, overlay refresh
+    private static final int TELEMETRY_INTERVAL = 200; // ms
+    private static final int MAX_FRAME = 1024;         // bytes, as SerialService pipeline buffers
+    private static final int JANK_DURATION = 50;       // ms, main thread busy per simulated slow frame
+    private static final int JANK_INTERVAL = 250;      // ms
+    private static final int ECHO_PAYLOAD_SIZE = 20;        // without link, as with default MTU
+    private static final int ECHO_PACKET_INTERVAL = 7500;   // us, without link, as with minimal connection interval
+    private enum Connected { False, Pending, True }
+    private enum Framing { None, Newline, StxEtx } // as framing_names
+
+    private String deviceAddress;
+    private SerialService service;
+
+    private TextView receiveText;
+    private TextView sendText;
+    private TextUtil.HexWatcher hexWatcher;
+    private TextView metricsText;
+    private boolean metricsEnabled = false;
+    private final LinkMetrics.Snapshot metrics = new LinkMetrics.Snapshot(); // reused for each refresh
+    private Runnable metricsRunnable;
+
+    private volatile Connected connected = Connected.False; // also read in SerialIo thread
+    private boolean initialStart = true;
+    private boolean hexEnabled = false;
+    private boolean backgroundReconnect = false;
+    private volatile String newline = TextUtil.newline_crlf; // also read in SerialIo thread
+    private Framing framing = Framing.None;
+    private Magnetometer magnetometer;
+    private Accelerometer accelerometer;
+    private PeriodicRssiReader rssiReader;
+    private String magnetometerData;
+    private String accelerometerData;
+    private String sensorData;
+    private volatile SerialSocket curr_socket;
+    private SessionReplay replay;
+    private Handler handler;   // main thread, rendering only
+    private Handler ioHandler; // SerialIo thread, telemetry frames
+    private Runnable sendDataRunnable;
+    private Runnable jankRunnable;
+    private volatile boolean telemetryOnMain = false; // old behavior, to compare tx timing
+    private boolean jankEnabled = false;
+    private volatile long telemetryDueNanos; // 0 = first tick, not measured
+    private final LatencyHistogram telemetryLateness = new LatencyHistogram(); // guarded by itself
+    private int sendTextColor;
+    private DecimalFormat df;                                               // main thread, sensor listeners
+    private final DecimalFormat telemetryDf = new DecimalFormat("#.##");   // sendDataRunnable, DecimalFormat is not thread safe
+    private volatile Orientation orientation;
+    private volatile Benchmark benchmark;
+    private EchoLink echoLink;
+        /*
+     * Lifecycle
+     */
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setHasOptionsMenu(true);
+        setRetainInstance(true);
+        deviceAddress = getArguments().getString("device");
+        df = new DecimalFormat("#.##");
+        magnetometer = MainActivity.getMagnetometer();
+        accelerometer = MainActivity.getAccelerometer();
+        orientation = MainActivity.getOrientationSensor();
+        magnetometer.setListener(new Magnetometer.Listener() {
+            @Override
+            public void onTranslation(float tx, float ty) {
+                magnetometerData = df.format(tx) + "," + df.format(ty);
+            }
+        });
+        accelerometer.setListener(new Accelerometer.Listener() {
+            @Override
+            public void onTranslation(float tx, float ty) {
+                accelerometerData = df.format(tx) + "," + df.format(ty);
+            }
+        });
+
+        this.handler = new Handler(Looper.getMainLooper());
+        this.ioHandler = SerialIo.getHandler();
+        this.sendDataRunnable = new Runnable() {
+            @SuppressWarnings("MissingPermission")
+            @Override
+            public void run() {
+                if (connected == Connected.True) {
+                    long now = System.nanoTime();
+                    if (telemetryDueNanos != 0) {
+                        synchronized (telemetryLateness) {
+                            telemetryLateness.record(now - telemetryDueNanos);
+                        }
+                    }
+                    sensorData = TelemetryFrame.format(telemetryDf, curr_socket.getRssi(), orientation.yaw(), orientation.roll());
+                    if (benchmark == null) // not competing with benchmark frames
+                        sendTelemetry(sensorData);
+                    telemetryDueNanos = System.nanoTime() + TELEMETRY_INTERVAL * 1_000_000L;
+                    telemetryHandler().postDelayed(this, TELEMETRY_INTERVAL);
+                }
+            }
+        };
+        this.jankRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (jankEnabled) {
+                    long end = System.nanoTime() + JANK_DURATION * 1_000_000L;
+                    //noinspection StatementWithEmptyBody
+                    while (System.nanoTime() < end) ;
+                    handler.postDelayed(this, JANK_INTERVAL);
+                }
+            }
+        };
+        this.metricsRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (metricsEnabled && metricsText != null) {
+                    metricsText.setText(getMetrics() ? metrics.toString() : "not connected");
+                    handler.postDelayed(this, METRICS_INTERVAL);
+                }
+            }
+        };
+
+    }
+
+    @Override
+    public void onDestroy() {
+        handler.removeCallbacks(metricsRunnable);
+        handler.removeCallbacks(jankRunnable);
+        stopTelemetry();
+        stopBenchmark();
+        if (connected != Connected.False)
+            disconnect();
+        getActivity().stopService(new Intent(getActivity(), SerialService.class));
+        super.onDestroy();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        if(service != null)
+            service.attach(this);
+        else
+            getActivity().startService(new Intent(getActivity(), SerialService.class)); // prevents service destroy on unbind from recreated activity caused by orientation change
+    }
+
+    @Override
+    public void onStop() {
+        if(service != null && !getActivity().isChangingConfigurations())
+            service.detach();
+        super.onStop();
+    }
+
+    @SuppressWarnings("deprecation") // onAttach(context) was added with API 23. onAttach(activity) works for all API versions
+    @Override
+    public void onAttach(@NonNull Activity activity) {
+        super.onAttach(activity);
+        getActivity().bindService(new Intent(getActivity(), SerialService.class), this, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onDetach() {
+        try { getActivity().unbindService(this); } catch(Exception ignored) {}
+        super.onDetach();
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        if(initialStart && service != null) {
+            initialStart = false;
+            getActivity().runOnUiThread(this::connect);
+        }
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        service = ((SerialService.SerialBinder) binder).getService();
+        service.setReconnect(true, backgroundReconnect);
+        updateReadStages();
+        service.attach(this);
+        if(initialStart && isResumed()) {
+            initialStart = false;
+            getActivity().runOnUiThread(this::connect);
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        service = null;
+    }
+
+    /*
+     * UI
+     */
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_terminal, container, false);
+        receiveText = view.findViewById(R.id.receive_text);                          // TextView performance decreases with number of spans
+        receiveText.setTextColor(getResources().getColor(R.color.colorRecieveText)); // set as default color to reduce number of spans
+        receiveText.setMovementMethod(ScrollingMovementMethod.getInstance());
+        sendTextColor = getResources().getColor(R.color.colorSendText);
+        sendText = view.findViewById(R.id.send_text);
+        hexWatcher = new TextUtil.HexWatcher(sendText);
+        hexWatcher.enable(hexEnabled);
+        sendText.addTextChangedListener(hexWatcher);
+        sendText.setHint(hexEnabled ? "HEX mode" : "");
+
+        View sendBtn = view.findViewById(R.id.send_btn);
+        sendBtn.setOnClickListener(v -> send(sendText.getText().toString()));
+        metricsText = view.findViewById(R.id.metrics_text);
+        metricsText.setVisibility(metricsEnabled ? View.VISIBLE : View.GONE);
+        handler.removeCallbacks(metricsRunnable);
+        handler.post(metricsRunnable);
+        return view;
+    }
+
+    @Override
+    public void onCreateOptionsMenu(@NonNull Menu menu, MenuInflater inflater) {
+        inflater.inflate(R.menu.menu_terminal, menu);
+        menu.findItem(R.id.hex).setChecked(hexEnabled);
+        menu.findItem(R.id.background_reconnect).setChecked(backgroundReconnect);
+        menu.findItem(R.id.metrics).setChecked(metricsEnabled);
+        menu.findItem(R.id.telemetry_on_main).setChecked(telemetryOnMain);
+        menu.findItem(R.id.simulate_jank).setChecked(jankEnabled);
+        menu.findItem(R.id.record).setChecked(service != null && service.isRecording());
+        menu.findItem(R.id.trace).setVisible(Trace.ENABLED);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.clear) {
+            receiveText.setText("");
+            return true;
+        } else if (id == R.id.newline) {
+            String[] newlineNames = getResources().getStringArray(R.array.newline_names);
+            String[] newlineValues = getResources().getStringArray(R.array.newline_values);
+            int pos = java.util.Arrays.asList(newlineValues).indexOf(newline);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Newline");
+            builder.setSingleChoiceItems(newlineNames, pos, (dialog, item1) -> {
+                newline = newlineValues[item1];
+                updateReadStages();
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.framing) {
+            String[] framingNames = getResources().getStringArray(R.array.framing_names);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Framing");
+            builder.setSingleChoiceItems(framingNames, framing.ordinal(), (dialog, item1) -> {
+                framing = Framing.values()[item1];
+                updateReadStages();
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.hex) {
+            hexEnabled = !hexEnabled;
+            sendText.setText("");
+            hexWatcher.enable(hexEnabled);
+            sendText.setHint(hexEnabled ? "HEX mode" : "");
+            item.setChecked(hexEnabled);
+            updateReadStages();
+            return true;
+        } else if (id == R.id.background_reconnect) {
+            backgroundReconnect = !backgroundReconnect;
+            if(service != null)
+                service.setReconnect(true, backgroundReconnect);
+            item.setChecked(backgroundReconnect);
+            return true;
+        } else if (id == R.id.metrics) {
+            metricsEnabled = !metricsEnabled;
+            metricsText.setVisibility(metricsEnabled ? View.VISIBLE : View.GONE);
+            handler.removeCallbacks(metricsRunnable);
+            handler.post(metricsRunnable);
+            item.setChecked(metricsEnabled);
+            return true;
+        } else if (id == R.id.telemetry_on_main) {
+            telemetryOnMain = !telemetryOnMain;
+            item.setChecked(telemetryOnMain);
+            if (connected == Connected.True)
+                startTelemetry();
+            return true;
+        } else if (id == R.id.simulate_jank) {
+            jankEnabled = !jankEnabled;
+            item.setChecked(jankEnabled);
+            handler.removeCallbacks(jankRunnable);
+            handler.post(jankRunnable);
+            return true;
+        } else if (id == R.id.dump_metrics) {
+            dumpMetrics();
+            return true;
+        } else if (id == R.id.trace) {
+            dumpTrace();
+            return true;
+        } else if (id == R.id.record) {
+            toggleRecording();
+            item.setChecked(service != null && service.isRecording());
+            return true;
+        } else if (id == R.id.replay) {
+            showReplayDialog();
+            return true;
+        } else if (id == R.id.older_data) {
+            loadOlderData();
+            return true;
+        } else if (id == R.id.benchmark) {
+            if (benchmark != null)
+                stopBenchmark();
+            else
+                showBenchmarkDialog();
+            return true;
+        } else if (id == R.id.add_follower) {
+            addFollower();
+            return true;
+        } else if (id == R.id.sessions) {
+            for(SessionStats stats : service.getSessionStats())
+                status(stats.toString());
+            status("broadcast skew avg " + service.getBroadcastSkewAvgMicros() + " us, max " + service.getBroadcastSkewMaxMicros() + " us");
+            CreditController.Sample[] credits = curr_socket != null ? curr_socket.getReadCreditTimeline() : new CreditController.Sample[0];
+            for(int i = Math.max(0, credits.length - 8); i < credits.length; i++)
+                status("read credits " + (credits[i].nanos - credits[0].nanos) / 1_000_000 + " ms: " + credits[i]);
+            return true;
+        } else {
+            return super.onOptionsItemSelected(item);
+        }
+    }
+
+    /*
+     * Serial + UI
+     */
+    private void connect() {
+        try {
+            BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+            status("connecting...");
+            connected = Connected.Pending;
+            SerialSocket socket = new SerialSocket(getActivity().getApplicationContext(), device);
+            curr_socket = socket;
+            service.connect(socket);
+        } catch (Exception e) {
+            onSerialConnectError(e);
+        }
+    }
+
+    /**
+     * followers are chosen from bonded devices, as scanning is done in DevicesFragment
+     */
+    @SuppressLint("MissingPermission")
+    private void addFollower() {
+        if(connected != Connected.True) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ArrayList<BluetoothDevice> devices = new ArrayList<>();
+        for(BluetoothDevice device : BluetoothAdapter.getDefaultAdapter().getBondedDevices())
+            if(device.getType() != BluetoothDevice.DEVICE_TYPE_CLASSIC && !device.getAddress().equals(deviceAddress))
+                devices.add(device);
+        String[] names = new String[devices.size()];
+        for(int i=0; i<names.length; i++)
+            names[i] = devices.get(i).getName() != null ? devices.get(i).getName() : devices.get(i).getAddress();
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Add Follower");
+        builder.setItems(names, (dialog, which) -> {
+            try {
+                status("connecting follower " + names[which] + "...");
+                service.connectFollower(new SerialSocket(getActivity().getApplicationContext(), devices.get(which)));
+            } catch (Exception e) {
+                status("follower connection failed: " + e.getMessage());
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * appends a snapshot, so repeated dumps form a timeline
+     */
+    private void dumpMetrics() {
+        if (!getMetrics()) { // rates since previous overlay refresh or dump
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File file = new File(getActivity().getExternalFilesDir(null), "metrics.txt");
+        try (Writer writer = new BufferedWriter(new FileWriter(file, true))) {
+            writer.write(new Date() + "\n" + metrics + "\n\n");
+            status("metrics written to " + file);
+        } catch (IOException e) {
+            status("metrics write failed: " + e.getMessage());
+        }
+    }
+
+    private void dumpTrace() {
+        File file = new File(getActivity().getExternalFilesDir(null), "trace.txt");
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            Trace.dump(writer);
+            status("trace written to " + file);
+        } catch (IOException e) {
+            Trace.dumpToLog();
+            status("trace dumped to logcat, as file failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * files in Android/data/<package>/files/recordings, pull with
+     *   adb pull /sdcard/Android/data/de.kai_morich.simple_bluetooth_le_terminal/files/recordings
+     */
+    private void toggleRecording() {
+        if (service == null)
+            return;
+        if (service.isRecording()) {
+            SessionRecorder recorder = service.stopRecording();
+            status("recording stopped, " + recorder.getRecords() + " records, " + recorder.getDropped() + " dropped"
+                    + (recorder.getError() != null ? ", failed: " + recorder.getError().getMessage() : ""));
+            return;
+        }
+        File dir = getActivity().getExternalFilesDir("recordings");
+        try {
+            service.startRecording(dir);
+            status("recording to " + dir);
+        } catch (IOException e) {
+            status("recording failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * replay newest recording instead of the device, with speed factor, 0 = as fast as possible
+     */
+    private void showReplayDialog() {
+        File[] files = getActivity().getExternalFilesDir("recordings").listFiles(
+                (dir, name) -> name.startsWith(SessionRecorder.FILE_PREFIX) && name.endsWith(SessionRecorder.FILE_SUFFIX));
+        if (files == null || files.length == 0) {
+            Toast.makeText(getActivity(), "no recordings", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        java.util.Arrays.sort(files); // names sort by time
+        File file = files[files.length - 1];
+        EditText input = new EditText(getActivity());
+        input.setText("1");
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Replay");
+        builder.setMessage(file.getName() + "\nspeed (0 = as fast as possible)");
+        builder.setView(input);
+        builder.setPositiveButton("Replay", (dialog, which) -> startReplay(file, input.getText().toString()));
+        builder.setNegativeButton("Cancel", null);
+        builder.create().show();
+    }
+
+    private void startReplay(File file, String speed) {
+        try {
+            if (connected != Connected.False)
+                disconnect(); // replay instead of the device
+            replay = new SessionReplay(Double.parseDouble(speed.trim()), file);
+            connected = Connected.Pending; // no sending while replaying
+            status("replay " + file.getName() + "...");
+            service.startReplay(replay);
+        } catch (NumberFormatException | IOException e) {
+            replay = null;
+            connected = Connected.False;
+            status("replay failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * input: rate (frames/s, 0 = saturate), frame size (bytes), duration (s).
+     * 'Link' needs a device echoing received data, 'Local Echo' runs against EchoLink with
+     * the current link payload size and connection interval, or defaults if not connected
+     */
+    private void showBenchmarkDialog() {
+        EditText input = new EditText(getActivity());
+        input.setText("50 20 10");
+        input.setHint("rate size seconds");
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Benchmark");
+        builder.setMessage("frames/s (0 = saturate), frame size, seconds");
+        builder.setView(input);
+        builder.setPositiveButton("Link", (dialog, which) -> startBenchmark(input.getText().toString(), false));
+        builder.setNeutralButton("Local Echo", (dialog, which) -> startBenchmark(input.getText().toString(), true));
+        builder.setNegativeButton("Cancel", null);
+        builder.create().show();
+    }
+
+    private void startBenchmark(String config, boolean echo) {
+        int rate, size, seconds;
+        try {
+            String[] values = config.trim().split("\\s+");
+            rate = Integer.parseInt(values[0]);
+            size = Integer.parseInt(values[1]);
+            seconds = Integer.parseInt(values[2]);
+            if (rate < 0 || size < Benchmark.MIN_FRAME_SIZE || seconds <= 0)
+                throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            status("benchmark: expected 'rate size seconds', size >= " + Benchmark.MIN_FRAME_SIZE);
+            return;
+        }
+        LinkParameters params = connected == Connected.True ? curr_socket.getLinkParameters() : null;
+        if (!echo && params == null) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Benchmark.Listener listener = (report, done) -> handler.post(() -> {
+            status(report);
+            if (done && benchmark != null && !benchmark.isRunning()) // not a newer benchmark
+                stopBenchmark();
+        });
+        if (echo) {
+            echoLink = new EchoLink(params != null ? params.mtu - 3 : ECHO_PAYLOAD_SIZE,
+                    params != null && params.intervalMicros != 0 ? params.intervalMicros : ECHO_PACKET_INTERVAL);
+            benchmark = new Benchmark("local echo", echoLink, listener, rate, size, seconds);
+            echoLink.start(benchmark);
+        } else {
+            benchmark = new Benchmark("link", frame -> service.write(frame, WriteQueue.Priority.Control, WriteQueue.Overflow.Block, WriteQueue.NO_KEY),
+                    listener, rate, size, seconds);
+            service.setBenchmark(benchmark);
+        }
+        if (params != null)
+            status("benchmark link: " + params);
+        benchmark.start();
+    }
+
+    private void stopBenchmark() {
+        if (benchmark == null)
+            return;
+        benchmark.stop();
+        benchmark = null;
+        if (echoLink != null)
+            echoLink.stop();
+        echoLink = null;
+        if (service != null)
+            service.setBenchmark(null);
+    }
+
+    private void disconnect() {
+        stopBenchmark();
+        replay = null;
+        connected = Connected.False;
+        stopTelemetry();
+        stopRssiReader();
+        service.disconnect();
+    }
+
+    private void send(String str) {
+        if(connected != Connected.True) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            String msg;
+            byte[] data;
+            if(hexEnabled) {
+                StringBuilder sb = new StringBuilder();
+                TextUtil.toHexString(sb, TextUtil.fromHexString(str));
+                TextUtil.toHexString(sb, newline.getBytes());
+                msg = sb.toString();
+                data = TextUtil.fromHexString(msg);
+            } else {
+                msg = str;
+                data = (str + newline).getBytes();
+            }
+            service.write(data); // does not block UI thread
+            SpannableStringBuilder spn = new SpannableStringBuilder(msg + '\n');
+            spn.setSpan(new ForegroundColorSpan(sendTextColor), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            receiveText.append(spn);
+        } catch (WriteQueue.FullException e) {
+            status("write queue full, not sent");
+        } catch (Exception e) {
+            onSerialIoError(e);
+        }
+    }
+
+    /**
+     * sensor frames use the telemetry lane, so commands from send() are not queued behind them.
+     * Frames are broadcast to the connected device and all followers.
+     */
+    private void sendTelemetry(String str) {
+        try {
+            byte[] data = (str + newline).getBytes();
+            service.broadcast(data, WriteQueue.Priority.Telemetry, WriteQueue.Overflow.LatestValue, TELEMETRY_KEY);
+            SpannableStringBuilder spn = new SpannableStringBuilder(str + '\n');
+            spn.setSpan(new ForegroundColorSpan(sendTextColor), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            handler.post(() -> {
+                if (receiveText != null)
+                    receiveText.append(spn);
+            });
+        } catch (Exception e) {
+            handler.post(() -> onSerialIoError(e));
+        }
+    }
+
+    private void stopRssiReader() {
+        if (rssiReader != null)
+            rssiReader.stopReadingRssi();
+        rssiReader = null;
+    }
+
+    private Handler telemetryHandler() {
+        return telemetryOnMain ? handler : ioHandler;
+    }
+
+    /**
+     * lateness of each tick against its schedule is collected, to see main thread stalls in tx timing
+     */
+    private void startTelemetry() {
+        stopTelemetry();
+        telemetryHandler().post(sendDataRunnable);
+    }
+
+    private void stopTelemetry() {
+        handler.removeCallbacks(sendDataRunnable);
+        ioHandler.removeCallbacks(sendDataRunnable);
+        telemetryDueNanos = 0;
+    }
+
+    /**
+     * service metrics plus telemetry lateness measured here
+     */
+    private boolean getMetrics() {
+        if (service == null || !service.getMetrics(metrics))
+            return false;
+        synchronized (telemetryLateness) {
+            telemetryLateness.copyTo(metrics.telemetryLateness);
+        }
+        return true;
+    }
+
+    /**
+     * framing, CR+LF and hex conversion run in the receive pipeline of the service,
+     * in the GATT callback thread, so only rendering is left for the UI thread
+     */
+    private void updateReadStages() {
+        if (service == null)
+            return;
+        ArrayList<Pipeline.Stage> stages = new ArrayList<>();
+        if (framing == Framing.Newline)
+            stages.add(Framer.newline(MAX_FRAME));
+        else if (framing == Framing.StxEtx)
+            stages.add(Framer.stxEtx(MAX_FRAME));
+        if (hexEnabled)
+            stages.add(PipelineStages.hex());
+        else if (newline.equals(TextUtil.newline_crlf))
+            stages.add(PipelineStages.crLf());
+        service.setReadStages(stages.toArray(new Pipeline.Stage[0]));
+    }
+
+    private void receive(ArrayDeque<byte[]> datas) {
+        receiveText.append(render(datas));
+    }
+
+    /**
+     * insert one page of data received in background before the shown text
+     */
+    private void loadOlderData() {
+        ArrayDeque<byte[]> datas = service != null ? service.readBacklogPage() : null;
+        if (datas == null) {
+            Toast.makeText(getActivity(), "no older data", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        receiveText.append(""); // converts text to Editable
+        receiveText.getEditableText().insert(0, render(datas));
+    }
+
+    /**
+     * data is already converted by the stages set in updateReadStages()
+     */
+    private CharSequence render(ArrayDeque<byte[]> datas) {
+        SpannableStringBuilder spn = new SpannableStringBuilder();
+        boolean keepNewline = hexEnabled || newline.length() != 0;
+        for (byte[] data : datas) {
+            spn.append(TextUtil.toCaretString(new String(data), keepNewline));
+            if (framing == Framing.StxEtx && !hexEnabled)
+                spn.append('\n'); // one line per frame
+        }
+        return spn;
+    }
+
+    private void status(String str) {
+        SpannableStringBuilder spn = new SpannableStringBuilder(str + '\n');
+        spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorStatusText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        receiveText.append(spn);
+    }
+
+    /*
+     * SerialListener
+     */
+    @Override
+    public void onSerialConnect() {
+        if (replay != null) {
+            status("replay started");
+            return;
+        }
+        // start
+        stopRssiReader();
+        rssiReader = new PeriodicRssiReader(curr_socket);
+        rssiReader.startReadingRssi();
+        synchronized (telemetryLateness) {
+            telemetryLateness.reset();
+        }
+        status("connected in "+curr_socket.getConnectMillis()+" ms"+(curr_socket.isConnectCached() ? " (cached profile)" : ""));
+        connected = Connected.True; // before startTelemetry(), sendDataRunnable runs in SerialIo thread and checks it
+        startTelemetry();
+    }
+
+    @Override
+    public void onSerialConnectError(Exception e) {
+        status("connection failed: " + e.getMessage());
+        disconnect();
+    }
+
+    @Override
+    public void onSerialLinkParameters(LinkParameters params) {
+        status("link: " + params);
+    }
+
+    @Override
+    public void onSerialRead(byte[] data) {
+        ArrayDeque<byte[]> datas = new ArrayDeque<>();
+        datas.add(data);
+        receive(datas);
+    }
+
+    public void onSerialRead(ArrayDeque<byte[]> datas) {
+        receive(datas);
+    }
+
+    @Override
+    public void onSerialIoError(Exception e) {
+        if (replay != null)
+            status("replay stopped: " + e.getMessage() + ", " + replay.getRxRecords() + " packets, " + replay.getRxBytes() + " bytes");
+        else
+            status("connection lost: " + e.getMessage());
+        disconnect();
+    }
+
+    @Override
+    public void onSerialLinkLost(Exception e) {
+        status("connection lost: " + e.getMessage() + ", reconnecting...");
+        connected = Connected.Pending; // stops sendDataRunnable
+    }
+
+    @Override
+    public void onSerialBacklog(long spilledBytes, long droppedBytes) {
+        if (spilledBytes > 0)
+            status((spilledBytes / 1024) + " KB older data received in background, see menu 'Older Data'");
+        if (droppedBytes > 0)
+            status((droppedBytes / 1024) + " KB data received in background dropped");
+    }
+
+    @Override
+    public void onSerialReconnect(int attempts, int millis) {
+        status("reconnected in " + millis + " ms, " + attempts + (attempts == 1 ? " attempt" : " attempts"));
+        connected = Connected.True;
+        startTelemetry();
+    }
+
+}
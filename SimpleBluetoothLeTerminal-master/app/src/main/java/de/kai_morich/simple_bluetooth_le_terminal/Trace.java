@@ -0,0 +1,99 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * preallocated binary trace ring for hot paths, instead of Log.d string concatenation + logcat IPC
+ *   - record() stores event id, timestamp and two int arguments without allocation
+ *   - oldest events are overwritten, dump() formats the ring only on demand
+ *
+ * call as 'if(Trace.ENABLED) Trace.record(...)'. ENABLED is a compile time constant
+ * from BuildConfig.TRACE (app/build.gradle), so release builds contain no tracing code.
+ *
+ * concurrent record() calls get distinct slots, but a dump() during recording can show a partially written slot
+ */
+final class Trace {
+
+    static final boolean ENABLED = BuildConfig.TRACE;
+
+    // event ids, arguments in comment
+    static final int WRITE_QUEUED    = 0;  // length, queued packets before
+    static final int WRITE_STARTED   = 1;  // length
+    static final int WRITE_BUSY      = 2;  // status
+    static final int WRITE_DONE      = 3;  // status
+    static final int READ            = 4;  // length
+    static final int WRITE_CREDITS   = 5;  // received, total
+    static final int NO_WRITE_CREDIT = 6;
+    static final int READ_CREDITS    = 7;  // granted, window
+    static final int FLUSH_HOLD      = 8;  // hold micros
+    private static final String[] NAMES = {
+            "write queued", "write started", "write busy", "write done", "read",
+            "write credits", "no write credit", "read credits", "flush hold"};
+
+    private static final String TAG = "Trace";
+    private static final int SIZE = 4096; // power of 2
+    private static final int MASK = SIZE - 1;
+
+    private static final long[] nanos = new long[SIZE];
+    private static final int[] events = new int[SIZE];
+    private static final int[] args1 = new int[SIZE];
+    private static final int[] args2 = new int[SIZE];
+    private static final AtomicInteger next = new AtomicInteger();
+
+    private Trace() {}
+
+    static void record(int event, int arg1, int arg2) {
+        int i = next.getAndIncrement() & MASK;
+        nanos[i] = System.nanoTime();
+        events[i] = event;
+        args1[i] = arg1;
+        args2[i] = arg2;
+    }
+
+    static void record(int event, int arg1) {
+        record(event, arg1, 0);
+    }
+
+    /**
+     * one line per event, oldest first, with time relative to oldest event in microseconds
+     */
+    static void dump(Writer writer) throws IOException {
+        int end = next.get();
+        int start = Math.max(0, end - SIZE);
+        long first = nanos[start & MASK];
+        StringBuilder sb = new StringBuilder();
+        for(int j=start; j<end; j++) {
+            sb.setLength(0);
+            format(sb, j & MASK, first);
+            writer.write(sb.append('\n').toString());
+        }
+        writer.flush();
+    }
+
+    static void dumpToLog() {
+        int end = next.get();
+        int start = Math.max(0, end - SIZE);
+        long first = nanos[start & MASK];
+        StringBuilder sb = new StringBuilder();
+        for(int j=start; j<end; j++) {
+            sb.setLength(0);
+            format(sb, j & MASK, first);
+            Log.d(TAG, sb.toString());
+        }
+    }
+
+    static void clear() {
+        next.set(0);
+    }
+
+    private static void format(StringBuilder sb, int i, long first) {
+        int event = events[i];
+        sb.append((nanos[i] - first) / 1000).append(' ')
+                .append(event >= 0 && event < NAMES.length ? NAMES[event] : String.valueOf(event))
+                .append(' ').append(args1[i]).append(' ').append(args2[i]);
+    }
+}
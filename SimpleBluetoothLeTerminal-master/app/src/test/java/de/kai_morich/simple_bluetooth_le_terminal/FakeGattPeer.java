@@ -0,0 +1,553 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.os.Build;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.RealObject;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+import org.robolectric.shadows.ShadowBluetoothGatt;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * simulated BLE serial device, to run SerialSocket on a JVM with Robolectric, without phone and device
+ *   - DeviceShadow and GattShadow route the BluetoothDevice / BluetoothGatt calls of SerialSocket to the peer
+ *   - callbacks are delivered from the peer thread, like from the binder thread on a phone
+ *   - packets are sent at connection events: writes with response take one interval,
+ *     writes without response and notifications share packetsPerEvent slots per interval.
+ *     Writes and notifications complete in order, like on a real link
+ *   - writes beyond writeBuffers in flight, and randomly with busy probability, are rejected as busy
+ *   - notifications are randomly dropped with loss probability, as by a peer with full UART buffer
+ *   - Telit profile does TIO credit flow control in both directions
+ *   - with echo, written data is sent back as notifications
+ *
+ * usage: @Config(shadows = {FakeGattPeer.DeviceShadow.class, FakeGattPeer.GattShadow.class}),
+ * then install() a peer and connect a SerialSocket to BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address).
+ * SerialSocket timeouts, write flush and busy retries are delayed messages of the SerialIo thread,
+ * so the test has to advance the Robolectric clock while waiting.
+ */
+public final class FakeGattPeer {
+
+    enum Profile {
+        Cc254x, Nrf, Microchip, Telit
+    }
+
+    private static final UUID CCCD                    = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID DEVICE_INFO_SERVICE     = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID CC254X_SERVICE          = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
+    private static final UUID CC254X_CHAR_RW          = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
+    private static final UUID NRF_SERVICE             = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID NRF_CHAR_RX             = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e"); // written by phone
+    private static final UUID NRF_CHAR_TX             = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID MICROCHIP_SERVICE       = UUID.fromString("49535343-FE7D-4AE5-8FA9-9FAFD205E455");
+    private static final UUID MICROCHIP_CHAR_RW       = UUID.fromString("49535343-1E4D-4BD9-BA61-23C647249616");
+    private static final UUID MICROCHIP_CHAR_W        = UUID.fromString("49535343-8841-43F4-A8D4-ECBE34729BB3");
+    private static final UUID TIO_SERVICE             = UUID.fromString("0000FEFB-0000-1000-8000-00805F9B34FB");
+    private static final UUID TIO_CHAR_TX             = UUID.fromString("00000001-0000-1000-8000-008025000000");
+    private static final UUID TIO_CHAR_RX             = UUID.fromString("00000002-0000-1000-8000-008025000000");
+    private static final UUID TIO_CHAR_TX_CREDITS     = UUID.fromString("00000003-0000-1000-8000-008025000000");
+    private static final UUID TIO_CHAR_RX_CREDITS     = UUID.fromString("00000004-0000-1000-8000-008025000000");
+
+    private static final int DEFAULT_MTU = 23;
+    private static final Map<String, FakeGattPeer> peers = new ConcurrentHashMap<>();
+
+    private final String address;
+    private final Profile profile;
+    private final Random random;
+    private final ScheduledExecutorService executor;
+    private final List<BluetoothGattService> services = new ArrayList<>();
+    private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
+    private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic; // Telit, named as in SerialSocket
+
+    // configuration, set before connect
+    private int maxMtu = 247;
+    private int intervalMicros = 7500;
+    private int latency;
+    private int packetsPerEvent = 4;
+    private int writeBuffers = 8;
+    private double loss, busy;
+    private boolean echo = true;
+    private boolean phy2M = true;
+    private int rssi = -60;
+    private int connectDelayMillis = 50;
+    private int writeCreditWindow = 32;     // Telit credits granted to the phone
+
+    // connection state, guarded by this
+    private BluetoothGatt gatt;
+    private BluetoothGattCallback callback;
+    private int generation;                 // callbacks of a previous connection are dropped
+    private boolean connected;
+    private int mtu = DEFAULT_MTU;
+    private long slotNanos;                 // per packet without response
+    private long linkFreeNanos, notifyFreeNanos;
+    private int inFlight;
+    private boolean notifying;
+    private final ArrayDeque<byte[]> outgoing = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> writesDone = new ArrayDeque<>();    // in write order
+    private final ArrayDeque<Runnable> notificationsDue = new ArrayDeque<>();
+    private int readCredits;                // Telit, granted by phone for notifications
+    private int writeCredits;               // Telit, granted to phone, not yet used
+
+    // statistics, guarded by this
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private long writes, busyRejections, lostNotifications, notifications, creditViolations;
+
+    FakeGattPeer(String address, Profile profile, long seed) {
+        this.address = address;
+        this.profile = profile;
+        random = new Random(seed);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "gatt-peer"));
+        createServices();
+    }
+
+    void setMtu(int maxMtu) { this.maxMtu = maxMtu; }
+    void setConnectionInterval(int micros, int latency) { intervalMicros = micros; this.latency = latency; }
+    void setPacketsPerEvent(int packets) { packetsPerEvent = packets; }
+    void setWriteBuffers(int packets) { writeBuffers = packets; }
+    void setLoss(double probability) { loss = probability; }
+    void setBusy(double probability) { busy = probability; }
+    void setEcho(boolean enabled) { echo = enabled; }
+    void setPhy2M(boolean supported) { phy2M = supported; }
+    void setRssi(int rssi) { this.rssi = rssi; }
+    void setConnectDelay(int millis) { connectDelayMillis = millis; }
+    void setWriteCreditWindow(int credits) { writeCreditWindow = credits; }
+
+    void install() {
+        peers.put(address, this);
+    }
+
+    void uninstall() {
+        peers.remove(address);
+        synchronized (this) {
+            connected = false;
+            generation++;
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * data from the peer, split into notifications of current payload size
+     */
+    void send(byte[] data) {
+        synchronized (this) {
+            int payloadSize = mtu - 3;
+            for(int offset=0; offset<data.length; offset+=payloadSize)
+                outgoing.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + payloadSize)));
+        }
+        sendNotifications();
+    }
+
+    /**
+     * link loss, e.g. 8 = connection timeout
+     */
+    void dropLink(int status) {
+        BluetoothGatt gatt;
+        BluetoothGattCallback callback;
+        synchronized (this) {
+            if(!connected)
+                return;
+            connected = false;
+            generation++;
+            gatt = this.gatt;
+            callback = this.callback;
+        }
+        executor.execute(() -> callback.onConnectionStateChange(gatt, status, BluetoothProfile.STATE_DISCONNECTED));
+    }
+
+    synchronized byte[] getReceived() { return received.toByteArray(); }
+    synchronized long getWrites() { return writes; }
+    synchronized long getBusyRejections() { return busyRejections; }
+    synchronized long getNotifications() { return notifications; }
+    synchronized long getLostNotifications() { return lostNotifications; }
+    synchronized long getCreditViolations() { return creditViolations; }
+
+    private void createServices() {
+        int rw = BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE;
+        int write = BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+        int notify = BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+        services.add(new BluetoothGattService(DEVICE_INFO_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY)); // skipped by profile lookup
+        BluetoothGattService service;
+        switch (profile) {
+            case Cc254x:
+                service = new BluetoothGattService(CC254X_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                readCharacteristic = writeCharacteristic = characteristic(service, CC254X_CHAR_RW,
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | notify, rw);
+                break;
+            case Nrf:
+                service = new BluetoothGattService(NRF_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                writeCharacteristic = characteristic(service, NRF_CHAR_RX, write, rw);
+                readCharacteristic = characteristic(service, NRF_CHAR_TX, notify, rw);
+                break;
+            case Microchip:
+                service = new BluetoothGattService(MICROCHIP_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                readCharacteristic = characteristic(service, MICROCHIP_CHAR_RW, notify | BluetoothGattCharacteristic.PROPERTY_WRITE, rw);
+                writeCharacteristic = characteristic(service, MICROCHIP_CHAR_W, write, rw);
+                break;
+            default:
+                service = new BluetoothGattService(TIO_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                writeCharacteristic = characteristic(service, TIO_CHAR_TX, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, rw);
+                readCharacteristic = characteristic(service, TIO_CHAR_RX, notify, rw);
+                writeCreditsCharacteristic = characteristic(service, TIO_CHAR_TX_CREDITS, BluetoothGattCharacteristic.PROPERTY_WRITE, rw);
+                readCreditsCharacteristic = characteristic(service, TIO_CHAR_RX_CREDITS, BluetoothGattCharacteristic.PROPERTY_INDICATE, rw);
+                break;
+        }
+        services.add(service);
+    }
+
+    private static BluetoothGattCharacteristic characteristic(BluetoothGattService service, UUID uuid, int properties, int permissions) {
+        BluetoothGattCharacteristic c = new BluetoothGattCharacteristic(uuid, properties, permissions);
+        if((properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0)
+            c.addDescriptor(new BluetoothGattDescriptor(CCCD, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        service.addCharacteristic(c);
+        return c;
+    }
+
+    /*
+     * BluetoothDevice / BluetoothGatt calls of SerialSocket
+     */
+    private void connect(BluetoothGatt gatt, BluetoothGattCallback callback) {
+        int connection;
+        synchronized (this) {
+            this.gatt = gatt;
+            this.callback = callback;
+            connection = ++generation;
+            connected = true;
+            mtu = DEFAULT_MTU;
+            slotNanos = intervalMicros * 1000L / packetsPerEvent;
+            linkFreeNanos = notifyFreeNanos = 0;
+            inFlight = 0;
+            notifying = false;
+            outgoing.clear();
+            writesDone.clear();
+            notificationsDue.clear();
+            readCredits = 0;
+            writeCredits = 0;
+        }
+        schedule(connection, connectDelayMillis * 1_000_000L,
+                () -> callback.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED));
+    }
+
+    private void close() {
+        synchronized (this) {
+            connected = false;
+            generation++;
+        }
+    }
+
+    private boolean discoverServices() {
+        return post(2, () -> callback.onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS));
+    }
+
+    private BluetoothGattService getService(UUID uuid) {
+        for(BluetoothGattService service : services)
+            if(service.getUuid().equals(uuid))
+                return service;
+        return null;
+    }
+
+    private boolean requestMtu(int requested) {
+        int negotiated;
+        synchronized (this) {
+            mtu = Math.max(DEFAULT_MTU, Math.min(requested, maxMtu));
+            negotiated = mtu;
+        }
+        return post(2, () -> callback.onMtuChanged(gatt, negotiated, BluetoothGatt.GATT_SUCCESS));
+    }
+
+    /**
+     * reported by the hidden onConnectionUpdated callback, which only SerialSocket implements
+     */
+    private boolean requestConnectionPriority() {
+        if(!(callback instanceof SerialSocket))
+            return true;
+        SerialSocket socket = (SerialSocket) callback;
+        return post(2, () -> socket.onConnectionUpdated(gatt, intervalMicros / 1250, latency, 500, BluetoothGatt.GATT_SUCCESS));
+    }
+
+    private void setPreferredPhy() {
+        if(phy2M) {
+            synchronized (this) {
+                slotNanos = Math.max(1, slotNanos / 2);
+            }
+            post(2, () -> callback.onPhyUpdate(gatt, BluetoothDevice.PHY_LE_2M, BluetoothDevice.PHY_LE_2M, BluetoothGatt.GATT_SUCCESS));
+        } else {
+            post(2, () -> callback.onPhyUpdate(gatt, BluetoothDevice.PHY_LE_1M, BluetoothDevice.PHY_LE_1M, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED));
+        }
+    }
+
+    private boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        BluetoothGattCharacteristic c = descriptor.getCharacteristic();
+        return post(2, () -> {
+            callback.onDescriptorWrite(gatt, descriptor, BluetoothGatt.GATT_SUCCESS);
+            if(c == readCharacteristic) {
+                synchronized (this) {
+                    notifying = true;
+                }
+                sendNotifications();
+            } else if(c == readCreditsCharacteristic) {
+                grantWriteCredits();
+            }
+        });
+    }
+
+    private boolean readRemoteRssi() {
+        return post(1, () -> callback.onReadRemoteRssi(gatt, rssi, BluetoothGatt.GATT_SUCCESS));
+    }
+
+    /**
+     * @return BluetoothStatusCodes
+     */
+    private int writeCharacteristic(BluetoothGattCharacteristic c, byte[] value, int writeType) {
+        boolean withResponse = writeType != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        byte[] data = value.clone();
+        int connection;
+        long delay;
+        synchronized (this) {
+            if(!connected)
+                return BluetoothStatusCodes.ERROR_UNKNOWN;
+            if(inFlight >= (withResponse ? 1 : writeBuffers) || random.nextDouble() < busy) {
+                busyRejections++;
+                return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+            }
+            inFlight++;
+            long now = System.nanoTime();
+            long intervalNanos = intervalMicros * 1000L;
+            if(linkFreeNanos + intervalNanos < now)
+                linkFreeNanos = now + latency * intervalNanos; // peripheral idle, may skip latency events
+            linkFreeNanos = Math.max(linkFreeNanos, now) + (withResponse ? intervalNanos : slotNanos);
+            delay = linkFreeNanos - now + (withResponse ? intervalNanos : 0); // response in next event
+            connection = generation;
+            writesDone.add(() -> onWriteDone(c, data));
+        }
+        scheduleOrdered(connection, delay, writesDone);
+        return BluetoothStatusCodes.SUCCESS;
+    }
+
+    private void onWriteDone(BluetoothGattCharacteristic c, byte[] data) {
+        boolean grant = false;
+        synchronized (this) {
+            inFlight--;
+            if(c == writeCharacteristic) {
+                writes++;
+                received.write(data, 0, data.length);
+                if(profile == Profile.Telit) {
+                    if(writeCredits == 0)
+                        creditViolations++;
+                    else
+                        writeCredits--;
+                    grant = writeCredits <= writeCreditWindow / 2;
+                }
+            } else if(c == writeCreditsCharacteristic) {
+                readCredits += data[0] & 0xff;
+            }
+        }
+        callback.onCharacteristicWrite(gatt, c, BluetoothGatt.GATT_SUCCESS);
+        if(c == writeCharacteristic && echo)
+            send(data);
+        if(c == writeCreditsCharacteristic)
+            sendNotifications();
+        if(grant)
+            grantWriteCredits();
+    }
+
+    private void grantWriteCredits() {
+        byte[] data;
+        synchronized (this) {
+            int credits = writeCreditWindow - writeCredits;
+            if(credits <= 0)
+                return;
+            writeCredits += credits;
+            data = new byte[] {(byte)credits};
+        }
+        post(1, () -> deliver(readCreditsCharacteristic, data));
+    }
+
+    /**
+     * queued notifications, each in the next free slot, Telit only while credits are granted
+     */
+    private void sendNotifications() {
+        synchronized (this) {
+            if(!connected || !notifying)
+                return;
+            long now = System.nanoTime();
+            while(!outgoing.isEmpty() && (profile != Profile.Telit || readCredits > 0)) {
+                byte[] data = outgoing.poll();
+                if(profile == Profile.Telit)
+                    readCredits--;
+                if(random.nextDouble() < loss) {
+                    lostNotifications++;
+                    continue;
+                }
+                notifications++;
+                notifyFreeNanos = Math.max(notifyFreeNanos, now) + slotNanos;
+                notificationsDue.add(() -> deliver(readCharacteristic, data));
+                scheduleOrdered(generation, notifyFreeNanos - now, notificationsDue);
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation") // onCharacteristicChanged without value before API 33
+    private void deliver(BluetoothGattCharacteristic c, byte[] data) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            callback.onCharacteristicChanged(gatt, c, data);
+        } else {
+            c.setValue(data);
+            callback.onCharacteristicChanged(gatt, c);
+        }
+    }
+
+    /**
+     * callback after intervals connection events
+     */
+    private boolean post(int intervals, Runnable runnable) {
+        int connection;
+        synchronized (this) {
+            if(!connected)
+                return false;
+            connection = generation;
+        }
+        schedule(connection, intervals * intervalMicros * 1000L, runnable);
+        return true;
+    }
+
+    private void schedule(int connection, long delayNanos, Runnable runnable) {
+        executor.schedule(() -> {
+            synchronized (this) {
+                if(connection != generation)
+                    return; // disconnected meanwhile
+            }
+            runnable.run();
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * runs the oldest runnable of fifo, as the executor might run a later callback first,
+     * if the thread was preempted between computing and scheduling the delay of the earlier one
+     */
+    private void scheduleOrdered(int connection, long delayNanos, ArrayDeque<Runnable> fifo) {
+        schedule(connection, delayNanos, () -> {
+            Runnable runnable;
+            synchronized (this) {
+                runnable = fifo.poll();
+            }
+            if(runnable != null)
+                runnable.run();
+        });
+    }
+
+    private static FakeGattPeer peerOf(BluetoothGatt gatt) {
+        FakeGattPeer peer = findPeer(gatt);
+        if(peer == null)
+            throw new IllegalStateException("no peer for gatt");
+        return peer;
+    }
+
+    /**
+     * null for gatt of a previous connection
+     */
+    private static FakeGattPeer findPeer(BluetoothGatt gatt) {
+        for(FakeGattPeer peer : peers.values())
+            synchronized (peer) {
+                if(peer.gatt == gatt)
+                    return peer;
+            }
+        return null;
+    }
+
+    /*
+     * Robolectric shadows
+     */
+    @Implements(BluetoothDevice.class)
+    public static class DeviceShadow extends ShadowBluetoothDevice {
+        @RealObject private BluetoothDevice realDevice;
+
+        @Implementation
+        public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback) {
+            return connectGatt(context, autoConnect, callback, BluetoothDevice.TRANSPORT_AUTO);
+        }
+
+        @Implementation
+        public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback, int transport) {
+            FakeGattPeer peer = peers.get(realDevice.getAddress());
+            if(peer == null)
+                return null;
+            BluetoothGatt gatt = ShadowBluetoothGatt.newInstance(realDevice);
+            peer.connect(gatt, callback);
+            return gatt;
+        }
+    }
+
+    @Implements(BluetoothGatt.class)
+    public static class GattShadow extends ShadowBluetoothGatt {
+        @RealObject private BluetoothGatt realGatt;
+
+        @Implementation
+        public boolean discoverServices() { return peerOf(realGatt).discoverServices(); }
+
+        @Implementation
+        public List<BluetoothGattService> getServices() { return new ArrayList<>(peerOf(realGatt).services); }
+
+        @Implementation
+        public BluetoothGattService getService(UUID uuid) { return peerOf(realGatt).getService(uuid); }
+
+        @Implementation
+        public boolean requestMtu(int mtu) { return peerOf(realGatt).requestMtu(mtu); }
+
+        @Implementation
+        public boolean requestConnectionPriority(int priority) { return peerOf(realGatt).requestConnectionPriority(); }
+
+        @Implementation
+        public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) { peerOf(realGatt).setPreferredPhy(); }
+
+        @Implementation
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic c, boolean enable) { return true; }
+
+        @Implementation
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) { return peerOf(realGatt).writeDescriptor(descriptor); }
+
+        @Implementation
+        @SuppressWarnings("deprecation")
+        public boolean writeCharacteristic(BluetoothGattCharacteristic c) {
+            return peerOf(realGatt).writeCharacteristic(c, c.getValue(), c.getWriteType()) == BluetoothStatusCodes.SUCCESS;
+        }
+
+        @Implementation
+        public int writeCharacteristic(BluetoothGattCharacteristic c, byte[] value, int writeType) {
+            return peerOf(realGatt).writeCharacteristic(c, value, writeType);
+        }
+
+        @Implementation
+        public boolean readRemoteRssi() { return peerOf(realGatt).readRemoteRssi(); }
+
+        @Implementation
+        public void disconnect() {
+            FakeGattPeer peer = findPeer(realGatt);
+            if(peer != null)
+                peer.close();
+        }
+
+        @Implementation
+        public void close() { /*nop, already closed by disconnect */ }
+    }
+}
@@ -0,0 +1,152 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerialSocket connected to FakeGattPeer with each built-in profile.
+ * Data is written through the pipelined write queue while the peer rejects writes as busy,
+ * and has to arrive complete and in order, also when echoed back.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33, shadows = {FakeGattPeer.DeviceShadow.class, FakeGattPeer.GattShadow.class})
+public class SerialSocketTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int DATA_SIZE = 4000;
+    private static final int WRITE_SIZE = 100;
+    private static final int WRITE_WINDOW = 4;
+    private static final long TIMEOUT_MILLIS = 10_000;
+    private static final long POLL_MILLIS = 10;
+
+    private FakeGattPeer peer;
+    private SerialSocket socket;
+
+    private static class Listener implements SerialListener {
+        final CountDownLatch connected = new CountDownLatch(1); // link parameters follow when writable
+        final ByteArrayOutputStream read = new ByteArrayOutputStream(); // guarded by itself
+        volatile Exception error;
+
+        @Override public void onSerialConnect() { }
+        @Override public void onSerialConnectError(Exception e) { error = e; connected.countDown(); }
+        @Override public void onSerialLinkParameters(LinkParameters params) { connected.countDown(); }
+        @Override public void onSerialRead(byte[] data) { synchronized (read) { read.write(data, 0, data.length); } }
+        @Override public void onSerialRead(ArrayDeque<byte[]> datas) { }
+        @Override public void onSerialIoError(Exception e) { error = e; }
+        @Override public void onSerialLinkLost(Exception e) { error = e; }
+        @Override public void onSerialReconnect(int attempts, int millis) { }
+        @Override public void onSerialBacklog(long spilledBytes, long droppedBytes) { }
+
+        byte[] getRead() {
+            synchronized (read) { return read.toByteArray(); }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if(socket != null)
+            socket.disconnect();
+        if(peer != null)
+            peer.uninstall();
+    }
+
+    @Test
+    public void cc254x() throws Exception {
+        transfer(FakeGattPeer.Profile.Cc254x);
+    }
+
+    @Test
+    public void nrf() throws Exception {
+        transfer(FakeGattPeer.Profile.Nrf);
+    }
+
+    @Test
+    public void microchip() throws Exception {
+        transfer(FakeGattPeer.Profile.Microchip);
+    }
+
+    @Test
+    public void telit() throws Exception {
+        transfer(FakeGattPeer.Profile.Telit);
+        assertEquals(0, peer.getCreditViolations());
+    }
+
+    /**
+     * second connect uses the profile and MTU cached by the first connect
+     */
+    @Test
+    public void cachedProfile() throws Exception {
+        createPeer(FakeGattPeer.Profile.Nrf);
+        connect();
+        assertFalse(socket.isConnectCached());
+        socket.disconnect();
+        Listener listener = connect();
+        assertTrue(socket.isConnectCached());
+        assertEquals(247, socket.getLinkParameters().mtu);
+        transfer(listener);
+    }
+
+    private void transfer(FakeGattPeer.Profile profile) throws Exception {
+        createPeer(profile);
+        transfer(connect());
+    }
+
+    private void createPeer(FakeGattPeer.Profile profile) {
+        peer = new FakeGattPeer(ADDRESS, profile, 1);
+        peer.setWriteBuffers(WRITE_WINDOW / 2);
+        peer.setBusy(0.2);
+        peer.install();
+    }
+
+    private Listener connect() throws Exception {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        socket = new SerialSocket(RuntimeEnvironment.getApplication(), device);
+        socket.setPipelined(WRITE_WINDOW);
+        Listener listener = new Listener();
+        socket.connect(listener);
+        assertTrue("connect timeout", listener.connected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(listener.error);
+        return listener;
+    }
+
+    private void transfer(Listener listener) throws Exception {
+        byte[] data = new byte[DATA_SIZE];
+        new Random(2).nextBytes(data);
+        for(int offset = 0; offset < data.length; offset += WRITE_SIZE) {
+            byte[] chunk = new byte[Math.min(WRITE_SIZE, data.length - offset)];
+            System.arraycopy(data, offset, chunk, 0, chunk.length);
+            socket.write(chunk);
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while((peer.getReceived().length < data.length || listener.getRead().length < data.length)
+                && listener.error == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+            ShadowSystemClock.advanceBy(Duration.ofMillis(POLL_MILLIS)); // runs delayed SerialIo messages like busy retries
+        }
+        assertNull(listener.error);
+        assertArrayEquals(data, peer.getReceived());
+        assertArrayEquals(data, listener.getRead()); // echo
+        assertTrue(peer.getBusyRejections() > 0);
+    }
+}
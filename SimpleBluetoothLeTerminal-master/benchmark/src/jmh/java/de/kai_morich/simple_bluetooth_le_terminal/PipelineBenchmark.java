@@ -0,0 +1,85 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerialService receive pipeline: one chunk pushed through framer and decoder stages
+ * and fanned out to the sinks, which are drained every 16 chunks like one UI batch.
+ * gc.alloc.rate.norm shows if pooled buffers are reused
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PipelineBenchmark {
+
+    private static final int CHUNK_SIZE = 244; // nrf uart at max MTU
+    private static final int CHUNKS = 64;
+    private static final int BATCH = 16;
+
+    @Param({"none", "newline", "stxetx"})
+    String framing;
+
+    @Param({"false", "true"})
+    boolean hex;
+
+    @Param({"1", "3"})
+    int sinks;
+
+    private Pipeline pipeline;
+    private Pipeline.Sink[] sinkArray;
+    private final ArrayDeque<BufferPool.Buffer> buffers = new ArrayDeque<>();
+    private final byte[][] chunks = new byte[CHUNKS][];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(1);
+        boolean stxEtx = framing.equals("stxetx");
+        for(int i = 0; i < CHUNKS; i++) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for(int j = 0; j < chunk.length; j++)
+                chunk[j] = (byte) (' ' + random.nextInt(95));
+            chunk[random.nextInt(CHUNK_SIZE)] = stxEtx ? Framer.STX : (byte) '\r';
+            chunk[random.nextInt(CHUNK_SIZE)] = stxEtx ? Framer.ETX : (byte) '\n';
+            chunks[i] = chunk;
+        }
+        Pipeline.Stage decoder = hex ? PipelineStages.hex() : PipelineStages.crLf();
+        switch(framing) {
+            case "newline": pipeline = new Pipeline(new BufferPool(1024, 256), Framer.newline(1024), decoder); break;
+            case "stxetx":  pipeline = new Pipeline(new BufferPool(1024, 256), Framer.stxEtx(1024), decoder); break;
+            default:        pipeline = new Pipeline(new BufferPool(1024, 256), decoder); break;
+        }
+        sinkArray = new Pipeline.Sink[sinks];
+        for(int i = 0; i < sinks; i++)
+            sinkArray[i] = pipeline.addSink("sink" + i, 1024, Pipeline.Overflow.DropOldest, null);
+    }
+
+    @Benchmark
+    public long push() {
+        pipeline.push(chunks[next++ & (CHUNKS - 1)]);
+        if((next & (BATCH - 1)) != 0)
+            return 0;
+        long bytes = 0;
+        for(Pipeline.Sink sink : sinkArray) {
+            sink.drainTo(buffers);
+            for(BufferPool.Buffer buffer : buffers) {
+                bytes += buffer.length;
+                buffer.release();
+            }
+            buffers.clear();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerialService read delivery: chunks pushed into the read Pipeline without stages by the
+ * GATT callback thread, the UI sink drained into one ArrayDeque batch per display frame
+ * and the pooled buffers copied and released, as FrameDispatcher does
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadCoalescingBenchmark {
+
+    private static final int CAPACITY = 1024; // as SerialService
+    private static final int BUFFER_SIZE = 1024; // as SerialService
+    private static final int BUFFERS = 256;      // as SerialService
+
+    @Param({"1", "16", "256"}) // chunks per UI update
+    int burst;
+
+    private final Pipeline pipeline = new Pipeline(new BufferPool(BUFFER_SIZE, BUFFERS));
+    private final Pipeline.Sink sink = pipeline.addSink("ui", CAPACITY, Pipeline.Overflow.DropOldest, null);
+    private final ArrayDeque<BufferPool.Buffer> buffers = new ArrayDeque<>();
+    private final byte[] chunk = new byte[20];
+
+    /**
+     * producer and consumer in one thread, ops = delivered batches
+     */
+    @Benchmark
+    public ArrayDeque<byte[]> burst() {
+        for(int i=0; i<burst; i++)
+            pipeline.push(chunk);
+        return drain();
+    }
+
+    /**
+     * producer and consumer in own threads, ops = pushed chunks + drained batches
+     */
+    @Benchmark
+    @Group("threaded")
+    @GroupThreads(1)
+    public void push() {
+        pipeline.push(chunk);
+    }
+
+    @Benchmark
+    @Group("threaded")
+    @GroupThreads(1)
+    public ArrayDeque<byte[]> poll() {
+        return drain();
+    }
+
+    private ArrayDeque<byte[]> drain() {
+        ArrayDeque<byte[]> datas = new ArrayDeque<>();
+        sink.drainTo(buffers);
+        for(BufferPool.Buffer buffer : buffers) {
+            datas.add(buffer.toByteArray());
+            buffer.release();
+        }
+        buffers.clear();
+        return datas;
+    }
+}
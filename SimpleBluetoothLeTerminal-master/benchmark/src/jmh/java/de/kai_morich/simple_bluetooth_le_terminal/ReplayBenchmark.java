@@ -0,0 +1,140 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * replay a recording as fast as possible through the Android-free part of the receive path:
+ * chunks merged into batches like SerialService, then hex or caret text conversion.
+ *
+ * uses recorded traffic if -Dreplay.file=session-....bin is given, else a generated recording
+ * of 10000 chunks, size as with nrf uart at max MTU
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReplayBenchmark {
+
+    private static final int GENERATED_CHUNKS = 10000;
+    private static final int GENERATED_SIZE = 244;
+
+    @Param({"1", "16"}) // chunks merged per UI batch
+    int batch;
+
+    @Param({"false", "true"})
+    boolean hex;
+
+    private File file;
+    private boolean generated;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String name = System.getProperty("replay.file");
+        if(name != null) {
+            file = new File(name);
+            return;
+        }
+        File dir = Files.createTempDirectory("replay").toFile();
+        SessionRecorder recorder = new SessionRecorder(dir, 4 * 1024 * 1024, Long.MAX_VALUE, 1);
+        recorder.start();
+        Random random = new Random(1);
+        byte[] data = new byte[GENERATED_SIZE];
+        for(int i = 0; i < GENERATED_CHUNKS; i++) {
+            for(int j = 0; j < data.length; j++)
+                data[j] = (byte) (' ' + random.nextInt(95));
+            data[data.length - 1] = '\n';
+            recorder.record(SessionRecorder.RX, data, i * 7_500_000L);
+        }
+        recorder.stop();
+        file = recorder.getFile();
+        generated = true;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(generated) {
+            File dir = file.getParentFile();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public long replay(Blackhole blackhole) {
+        SessionReplay replay = new SessionReplay(0, file);
+        replay.run(new ReceiveListener(blackhole, batch, hex));
+        return replay.getRxBytes();
+    }
+
+    /**
+     * merges chunks like SerialService, converts like TerminalFragment.receive without spans
+     */
+    private static final class ReceiveListener implements SerialListener {
+        private final Blackhole blackhole;
+        private final int batch;
+        private final boolean hex;
+        private final ArrayDeque<byte[]> datas = new ArrayDeque<>();
+
+        ReceiveListener(Blackhole blackhole, int batch, boolean hex) {
+            this.blackhole = blackhole;
+            this.batch = batch;
+            this.hex = hex;
+        }
+
+        @Override public void onSerialConnect() { }
+        @Override public void onSerialConnectError(Exception e) { }
+        @Override public void onSerialLinkParameters(LinkParameters params) { }
+        @Override public void onSerialLinkLost(Exception e) { }
+        @Override public void onSerialReconnect(int attempts, int millis) { }
+        @Override public void onSerialBacklog(long spilledBytes, long droppedBytes) { }
+
+        @Override
+        public void onSerialRead(byte[] data) {
+            datas.add(data);
+            if(datas.size() >= batch) {
+                onSerialRead(datas);
+                datas.clear();
+            }
+        }
+
+        @Override
+        public void onSerialRead(ArrayDeque<byte[]> datas) {
+            StringBuilder sb = new StringBuilder();
+            for(byte[] data : datas) {
+                if(hex) {
+                    TextUtil.toHexString(sb, data);
+                    sb.append('\n');
+                } else {
+                    sb.append(new String(data).replace(TextUtil.newline_crlf, TextUtil.newline_lf));
+                }
+            }
+            blackhole.consume(sb);
+        }
+
+        @Override
+        public void onSerialIoError(Exception e) { // end of recording
+            if(!datas.isEmpty()) {
+                onSerialRead(datas);
+                datas.clear();
+            }
+        }
+    }
+}
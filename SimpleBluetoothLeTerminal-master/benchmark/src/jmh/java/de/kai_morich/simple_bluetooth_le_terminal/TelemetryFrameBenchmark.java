@@ -0,0 +1,31 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sensor frame as built by TerminalFragment every 200 ms, including newline and byte conversion
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TelemetryFrameBenchmark {
+
+    private final DecimalFormat df = new DecimalFormat("#.##");
+    private final String newline = TextUtil.newline_crlf;
+    private int rssi = -67;
+    private double yaw = 123.4567, roll = -7.891;
+
+    @Benchmark
+    public byte[] frame() {
+        yaw += 0.01; // DecimalFormat cost depends on digits
+        return (TelemetryFrame.format(df, rssi, yaw, roll) + newline).getBytes();
+    }
+}
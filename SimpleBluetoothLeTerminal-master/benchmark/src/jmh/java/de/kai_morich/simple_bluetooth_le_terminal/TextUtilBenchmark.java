@@ -0,0 +1,58 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hex conversion of received chunks and send text, caret check of received text.
+ * toCaretString only with text without control characters, as caret notation
+ * creates spans, which need the Android framework
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TextUtilBenchmark {
+
+    @Param({"20", "244"}) // chunk size with default and max MTU
+    int size;
+
+    private byte[] data;
+    private String hex;
+    private String text;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        data = new byte[size];
+        random.nextBytes(data);
+        hex = TextUtil.toHexString(data);
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < size - 1)
+            sb.append((char)(' ' + random.nextInt(95)));
+        text = sb.append('\n').toString();
+    }
+
+    @Benchmark
+    public String toHexString() {
+        return TextUtil.toHexString(data);
+    }
+
+    @Benchmark
+    public byte[] fromHexString() {
+        return TextUtil.fromHexString(hex);
+    }
+
+    @Benchmark
+    public CharSequence toCaretString() {
+        return TextUtil.toCaretString(text, true);
+    }
+}
@@ -0,0 +1,142 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerialSocket write path without GATT: chunking a write into payloadSize packets,
+ * then peek, remove and ack per packet, as writeNext() and onCharacteristicWrite() do.
+ * baselineWrite is the former ArrayList write buffer, to compare with write: packets is reported in
+ * packets/s, allocated bytes per packet is gc.alloc.rate.norm / packetsPerWrite
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriteQueueBenchmark {
+
+    private static final int CAPACITY = 256;    // as SerialSocket
+    private static final int TELEMETRY_KEY = 1;
+    private static final int SMALL_WRITES = 8;
+    private static final int SMALL_WRITE_SIZE = 16;
+
+    @Param({"20", "244"})
+    int payloadSize;
+
+    @Param({"16", "1024"})
+    int writeSize;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Packets {
+        public long packets;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+        }
+    }
+
+    private final WriteQueue queue = new WriteQueue(CAPACITY);
+    private final ArrayList<byte[]> writeBuffer = new ArrayList<>();
+    private byte[] data;
+    private int packetsPerWrite;
+    private final byte[] small = new byte[SMALL_WRITE_SIZE];
+
+    @Setup
+    public void setup() {
+        data = new byte[writeSize];
+        packetsPerWrite = (writeSize + payloadSize - 1) / payloadSize;
+    }
+
+    /**
+     * one write, sent and acknowledged packet by packet
+     */
+    @Benchmark
+    public int write(Packets packets) throws IOException {
+        synchronized (queue) {
+            queue.add(data, payloadSize, WriteQueue.Priority.Control, WriteQueue.Overflow.FailFast, WriteQueue.NO_KEY, new WriteHandle(), 0);
+            packets.packets += packetsPerWrite;
+            return drain();
+        }
+    }
+
+    /**
+     * former SerialSocket.write() and writeNext() with idle link: the first packet is sent directly,
+     * the others are copied into writeBuffer and removed from its head per onCharacteristicWrite()
+     */
+    @Benchmark
+    public int baselineWrite(Packets packets) {
+        byte[] data0;
+        synchronized (writeBuffer) {
+            if(data.length <= payloadSize) {
+                data0 = data;
+            } else {
+                data0 = Arrays.copyOfRange(data, 0, payloadSize);
+            }
+            for(int i=1; i<packetsPerWrite; i++) {
+                int from = i*payloadSize;
+                int to = Math.min(from+payloadSize, data.length);
+                writeBuffer.add(Arrays.copyOfRange(data, from, to));
+            }
+        }
+        int length = data0.length;
+        while(true) {
+            byte[] next;
+            synchronized (writeBuffer) {
+                if(writeBuffer.isEmpty())
+                    break;
+                next = writeBuffer.remove(0);
+            }
+            length += next.length;
+        }
+        packets.packets += packetsPerWrite;
+        return length;
+    }
+
+    /**
+     * small writes merged into payload sized packets while the link is busy, independent of writeSize
+     */
+    @Benchmark
+    public int coalescedWrites() throws IOException {
+        synchronized (queue) {
+            long now = System.nanoTime();
+            for(int i=0; i<SMALL_WRITES; i++)
+                queue.addCoalesced(small, payloadSize, now, WriteQueue.Priority.Telemetry, WriteQueue.Overflow.FailFast, new WriteHandle(), 0);
+            return drain();
+        }
+    }
+
+    /**
+     * sensor frames replacing the queued frame, as with TerminalFragment telemetry, independent of writeSize
+     */
+    @Benchmark
+    public int latestValue() throws IOException {
+        synchronized (queue) {
+            for(int i=0; i<SMALL_WRITES; i++)
+                queue.add(small, payloadSize, WriteQueue.Priority.Telemetry, WriteQueue.Overflow.LatestValue, TELEMETRY_KEY, new WriteHandle(), 0);
+            return drain();
+        }
+    }
+
+    private int drain() {
+        int length = 0;
+        while(queue.peek(System.nanoTime(), 0) != null) {
+            queue.remove();
+            length += queue.ack();
+        }
+        return length;
+    }
+}
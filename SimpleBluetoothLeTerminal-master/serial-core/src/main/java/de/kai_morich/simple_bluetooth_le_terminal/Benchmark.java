@@ -0,0 +1,210 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * loopback benchmark against a device echoing received data, or against EchoLink
+ *   - sends sequence numbered, timestamped frames at a fixed rate
+ *   - rate 0 saturates: frames are written as fast as the link accepts them. Link writes block
+ *     while the write queue is full, so it stays full
+ *   - echoed data can be split or merged into other chunks, so frames are reassembled by magic and fixed size
+ *   - reports round trip percentiles, loss, reordering and throughput
+ *
+ * frame: magic(2) sequence(4) System.nanoTime()(8) zero padding
+ */
+final class Benchmark {
+
+    interface Link {
+        void write(byte[] frame) throws IOException; // frame is not modified afterwards
+    }
+
+    interface Listener {
+        void onBenchmarkReport(String report, boolean done); // called from benchmark thread
+    }
+
+    static final int MIN_FRAME_SIZE = 14;
+    private static final byte MAGIC0 = (byte)0xA5, MAGIC1 = (byte)0x5A;
+    private static final long DRAIN_TIMEOUT = 2_000_000_000L; // ns waiting for echoes after last frame
+    private static final long REPORT_INTERVAL = 1_000_000_000L;
+
+    private final Link link;
+    private final Listener listener;
+    private final int rate;     // frames per second, 0 = saturate
+    private final int size;     // bytes per frame
+    private final int seconds;
+    private final String name;
+    private volatile boolean running;
+    private Thread thread;
+
+    // guarded by this
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private final BitSet seen = new BitSet();
+    private final byte[] pending;
+    private int pendingLength;
+    private int sent, received, reordered, duplicates, corrupt, writeErrors;
+    private int highestSequence = -1;
+    private long startNanos, endNanos;
+
+    Benchmark(String name, Link link, Listener listener, int rate, int size, int seconds) {
+        if(size < MIN_FRAME_SIZE)
+            throw new IllegalArgumentException("frame size < " + MIN_FRAME_SIZE);
+        this.name = name;
+        this.link = link;
+        this.listener = listener;
+        this.rate = rate;
+        this.size = size;
+        this.seconds = seconds;
+        pending = new byte[size];
+    }
+
+    void start() {
+        running = true;
+        startNanos = System.nanoTime();
+        thread = new Thread(this::run, "benchmark");
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if(thread != null)
+            thread.interrupt();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * echoed data, from any thread
+     */
+    synchronized void onReceive(byte[] data) {
+        for(byte b : data) {
+            if(pendingLength == 0 && b != MAGIC0)
+                continue; // not part of a frame
+            if(pendingLength == 1 && b != MAGIC1) {
+                pendingLength = b == MAGIC0 ? 1 : 0;
+                continue;
+            }
+            pending[pendingLength++] = b;
+            if(pendingLength == size) {
+                onFrame(System.nanoTime());
+                pendingLength = 0;
+            }
+        }
+    }
+
+    private void onFrame(long now) {
+        int sequence = getInt(pending, 2);
+        long nanos = getLong(pending, 6);
+        if(sequence < 0 || sequence >= sent || nanos < startNanos || nanos > now) {
+            corrupt++; // lost bytes, frame boundary found again at next magic
+            return;
+        }
+        if(seen.get(sequence)) {
+            duplicates++;
+            return;
+        }
+        seen.set(sequence);
+        received++;
+        if(sequence < highestSequence)
+            reordered++;
+        highestSequence = Math.max(highestSequence, sequence);
+        rtt.record(now - nanos);
+    }
+
+    private void run() {
+        long now = System.nanoTime();
+        long end = now + seconds * 1_000_000_000L;
+        long next = now, nextReport = now + REPORT_INTERVAL;
+        long period = rate > 0 ? 1_000_000_000L / rate : 0;
+        while(running && now < end) {
+            if(period > 0 && next - now > 0) {
+                LockSupport.parkNanos(next - now);
+                now = System.nanoTime();
+                continue;
+            }
+            next += period;
+            byte[] frame = new byte[size]; // referenced by the write queue until sent
+            frame[0] = MAGIC0;
+            frame[1] = MAGIC1;
+            int sequence;
+            synchronized (this) {
+                sequence = sent++;
+            }
+            putInt(frame, 2, sequence);
+            putLong(frame, 6, System.nanoTime());
+            try {
+                link.write(frame);
+            } catch (IOException e) {
+                synchronized (this) {
+                    writeErrors++; // counted as lost
+                }
+                if(!(e instanceof WriteQueue.FullException)) {
+                    running = false;
+                    listener.onBenchmarkReport(name + " stopped: " + e.getMessage(), false);
+                }
+            }
+            now = System.nanoTime();
+            if(now - nextReport >= 0) {
+                nextReport += REPORT_INTERVAL;
+                listener.onBenchmarkReport(report(now, false), false);
+            }
+        }
+        synchronized (this) {
+            endNanos = System.nanoTime();
+            long drainEnd = endNanos + DRAIN_TIMEOUT;
+            while(received + writeErrors < sent && drainEnd - System.nanoTime() > 0) {
+                try {
+                    wait(10);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        running = false;
+        listener.onBenchmarkReport(report(System.nanoTime(), true), true);
+    }
+
+    /**
+     * before done, frames not yet echoed are reported as outstanding instead of lost
+     */
+    private synchronized String report(long now, boolean done) {
+        long elapsed = (endNanos != 0 ? endNanos : now) - startNanos;
+        long lost = sent - received;
+        return name + ": " + (rate > 0 ? rate + " frames/s" : "saturate") + " x " + size + " B"
+                + ", " + elapsed / 1_000_000 + " ms\n"
+                + "sent " + sent + ", received " + received
+                + (done ? ", lost " : ", outstanding ") + lost + String.format(" (%.1f%%)", sent == 0 ? 0 : lost * 100.0 / sent)
+                + ", reordered " + reordered + ", duplicates " + duplicates + ", corrupt " + corrupt + "\n"
+                + "rtt p50<=" + rtt.getPercentileMicros(50) / 1000.0 + " ms, p90<=" + rtt.getPercentileMicros(90) / 1000.0
+                + " ms, p99<=" + rtt.getPercentileMicros(99) / 1000.0 + " ms, max=" + rtt.getMaxMicros() / 1000.0 + " ms\n"
+                + "tx " + (elapsed > 0 ? (long)sent * size * 1_000_000_000L / elapsed : 0) + " B/s"
+                + ", rx " + (elapsed > 0 ? (long)received * size * 1_000_000_000L / elapsed : 0) + " B/s";
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        for(int i=0; i<4; i++)
+            b[offset+i] = (byte)(value >>> (24 - 8*i));
+    }
+
+    private static void putLong(byte[] b, int offset, long value) {
+        for(int i=0; i<8; i++)
+            b[offset+i] = (byte)(value >>> (56 - 8*i));
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        int value = 0;
+        for(int i=0; i<4; i++)
+            value = (value << 8) | (b[offset+i] & 0xff);
+        return value;
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for(int i=0; i<8; i++)
+            value = (value << 8) | (b[offset+i] & 0xff);
+        return value;
+    }
+}
@@ -0,0 +1,129 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * pool of byte buffers shared by Pipeline stages and sinks, so received data is not
+ * allocated per stage and per sink
+ *   - buffers are reference counted, fan-out retains a buffer once per sink and
+ *     the last release() returns it to the pool
+ *   - buffers larger than bufferSize are allocated on demand and not pooled
+ *   - at most maxPooled free buffers are kept, so a burst does not pin memory
+ *   - the free list is a bounded lock-free queue, as buffers are acquired in the GATT callback
+ *     thread and released in the UI thread. No thread waits for another, a slot not yet
+ *     published by recycle() makes acquire() allocate
+ */
+final class BufferPool {
+
+    static final class Buffer {
+        final byte[] data;
+        int length;
+        private final BufferPool pool;
+        private final AtomicInteger refs = new AtomicInteger();
+
+        private Buffer(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.data = new byte[capacity];
+        }
+
+        Buffer retain() {
+            refs.incrementAndGet();
+            return this;
+        }
+
+        void release() {
+            int r = refs.decrementAndGet();
+            if(r == 0)
+                pool.recycle(this);
+            else if(r < 0)
+                throw new IllegalStateException("buffer released twice");
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    private final int bufferSize;
+    private final Buffer[] free;            // slot i is published by sequence i
+    private final AtomicLongArray sequence; // == position to offer, == position+1 to poll
+    private final int mask;
+    private final AtomicLong offered = new AtomicLong(), polled = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * maxPooled is rounded up to a power of 2
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        int size = Integer.highestOneBit(Math.max(maxPooled, 2) - 1) << 1;
+        free = new Buffer[size];
+        sequence = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++)
+            sequence.set(i, i);
+        mask = size-1;
+    }
+
+    /**
+     * @return buffer with length 0 and one reference
+     */
+    Buffer acquire(int size) {
+        Buffer buffer = size <= bufferSize ? poll() : null;
+        if(buffer == null) {
+            allocated.incrementAndGet();
+            buffer = new Buffer(this, Math.max(size, bufferSize));
+        }
+        buffer.length = 0;
+        buffer.refs.set(1);
+        return buffer;
+    }
+
+    private void recycle(Buffer buffer) {
+        if(buffer.data.length != bufferSize)
+            return;
+        long pos = offered.get();
+        while(true) {
+            int i = (int)pos & mask;
+            long diff = sequence.get(i) - pos;
+            if(diff < 0)
+                return; // full
+            if(diff == 0 && offered.compareAndSet(pos, pos+1)) {
+                free[i] = buffer;
+                sequence.lazySet(i, pos+1); // publishes slot
+                return;
+            }
+            pos = offered.get();
+        }
+    }
+
+    private Buffer poll() {
+        long pos = polled.get();
+        while(true) {
+            int i = (int)pos & mask;
+            long diff = sequence.get(i) - (pos+1);
+            if(diff < 0)
+                return null; // empty, or slot not yet published
+            if(diff == 0 && polled.compareAndSet(pos, pos+1)) {
+                Buffer buffer = free[i];
+                free[i] = null;
+                sequence.lazySet(i, pos+free.length); // releases slot for next round
+                return buffer;
+            }
+            pos = polled.get();
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+    long getAllocated() {
+        return allocated.get();
+    }
+    int getFree() {
+        long pos = polled.get(); // before offered, so size is never negative
+        return (int)(offered.get() - pos);
+    }
+}
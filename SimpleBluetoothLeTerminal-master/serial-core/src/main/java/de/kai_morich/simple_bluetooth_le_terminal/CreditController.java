@@ -0,0 +1,183 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * read credit window for credit based flow control, like Telit TIO
+ *   - each notification from the peer consumes one granted credit
+ *   - the window covers the notifications arriving during one grant round trip plus the time received
+ *     data waits until the consumer took it, doubled so a grant is sent at half the window,
+ *     before the peer runs out of credits
+ *   - received data not yet taken by the consumer (backlog) is subtracted from each grant,
+ *     so credits are not granted faster than data is consumed. onDrained() grants again when the
+ *     consumer caught up, as the peer might have stopped sending
+ *   - only one grant is in flight, credits consumed meanwhile are added to the next grant
+ *
+ * times are passed in as System.nanoTime(). not thread safe, caller synchronizes
+ */
+final class CreditController {
+
+    static final class Sample {
+        long nanos;
+        int outstanding;  // before grant
+        int backlog;
+        int granted;      // 0 = peer ran out of credits
+        int window;
+
+        void set(Sample s) {
+            nanos = s.nanos;
+            outstanding = s.outstanding;
+            backlog = s.backlog;
+            granted = s.granted;
+            window = s.window;
+        }
+
+        @Override
+        public String toString() {
+            return (granted == 0 ? "stall" : "+" + granted) + ", outstanding " + outstanding + ", backlog " + backlog + ", window " + window;
+        }
+    }
+
+    static final int MIN_WINDOW = 8;
+    static final int MAX_WINDOW = 128;  // grant is sent as one byte
+    static final int INITIAL_WINDOW = 32;
+    private static final int TIMELINE_SIZE = 256;
+    private static final int EWMA_SHIFT = 3;  // weight 1/8 for new sample
+
+    private final Sample[] timeline = new Sample[TIMELINE_SIZE]; // entries are reused, record() does not allocate
+    private int timelineNext, timelineCount;
+
+    private int window = INITIAL_WINDOW;
+    private int outstanding;        // granted to peer, not yet used by notifications
+    private int backlog;            // received, not yet taken by the consumer
+    private boolean started;        // initial grant sent
+    private boolean granting;       // grant in flight
+    private long grantStartNanos;
+    private long lastReadNanos;
+    private long intervalNanos;     // EWMA of notification inter-arrival time, 0 = unknown
+    private long drainNanos;        // EWMA of time received data waits until the consumer took it
+    private long grantRttNanos;     // EWMA of grant write round trip
+    private long grants, grantedCredits, stalls;
+
+    CreditController() {
+        for(int i=0; i<TIMELINE_SIZE; i++)
+            timeline[i] = new Sample();
+    }
+
+    void reset() {
+        window = INITIAL_WINDOW;
+        outstanding = 0;
+        backlog = 0;
+        started = false;
+        granting = false;
+        lastReadNanos = 0;
+        intervalNanos = 0;
+        drainNanos = 0;
+        grantRttNanos = 0;
+        timelineNext = 0;
+        timelineCount = 0;
+    }
+
+    /**
+     * @return credits to grant initially
+     */
+    int start(long now) {
+        started = true;
+        return grant(now);
+    }
+
+    /**
+     * notification received
+     * @param backlog  received data not yet taken by the consumer, in notifications
+     * @return credits to grant now, 0 if not yet required or a grant is in flight
+     */
+    int onRead(long now, int backlog) {
+        this.backlog = backlog;
+        if(outstanding > 0)
+            outstanding--;
+        if(lastReadNanos != 0)
+            intervalNanos = ewma(intervalNanos, now - lastReadNanos);
+        lastReadNanos = now;
+        if(outstanding == 0) {
+            stalls++;
+            record(now, 0); // peer has to wait for next grant
+        }
+        return granting || outstanding + backlog > window / 2 ? 0 : grant(now);
+    }
+
+    /**
+     * consumer took received data
+     * @param waitNanos  time the oldest data waited until the consumer took it
+     * @param backlog    data received meanwhile, not yet taken
+     * @return credits to grant now, if the backlog had held them back
+     */
+    int onDrained(long waitNanos, int backlog, long now) {
+        drainNanos = ewma(drainNanos, waitNanos);
+        this.backlog = backlog;
+        return !started || granting || outstanding + backlog > window / 2 ? 0 : grant(now);
+    }
+
+    /**
+     * grant write confirmed
+     * @return credits to grant now, if more were consumed meanwhile
+     */
+    int onGrantDone(long now) {
+        if(!granting)
+            return 0;
+        granting = false;
+        grantRttNanos = ewma(grantRttNanos, now - grantStartNanos);
+        return outstanding + backlog > window / 2 ? 0 : grant(now);
+    }
+
+    int getWindow() { return window; }
+    int getOutstanding() { return outstanding; }
+    long getGrants() { return grants; }
+    long getGrantedCredits() { return grantedCredits; }
+    long getStalls() { return stalls; }
+
+    /**
+     * grants and stalls, oldest first. Copied, as the entries are overwritten by later events
+     */
+    Sample[] getTimeline() {
+        Sample[] samples = new Sample[timelineCount];
+        for(int i=0; i<timelineCount; i++) {
+            samples[i] = new Sample();
+            samples[i].set(timeline[(timelineNext - timelineCount + i + TIMELINE_SIZE) % TIMELINE_SIZE]);
+        }
+        return samples;
+    }
+
+    private int grant(long now) {
+        window = computeWindow();
+        int credits = window - outstanding - backlog;
+        if(credits <= 0)
+            return 0;
+        record(now, credits);
+        outstanding += credits;
+        granting = true;
+        grantStartNanos = now;
+        grants++;
+        grantedCredits += credits;
+        return credits;
+    }
+
+    private int computeWindow() {
+        if(intervalNanos == 0 || grantRttNanos == 0)
+            return window; // keep initial window until rate and round trip are known
+        long inFlight = (grantRttNanos + drainNanos + intervalNanos - 1) / intervalNanos;
+        return (int) Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, 2 * inFlight));
+    }
+
+    private void record(long now, int granted) {
+        Sample s = timeline[timelineNext];
+        s.nanos = now;
+        s.outstanding = outstanding;
+        s.backlog = backlog;
+        s.granted = granted;
+        s.window = window;
+        timelineNext = (timelineNext + 1) % TIMELINE_SIZE;
+        timelineCount = Math.min(timelineCount + 1, TIMELINE_SIZE);
+    }
+
+    private static long ewma(long avg, long sample) {
+        return avg == 0 ? sample : avg + ((sample - avg) >> EWMA_SHIFT);
+    }
+}
@@ -0,0 +1,80 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * local echo stand-in for the BLE link, to compare Benchmark results without radio
+ *   - writes go through the same SerialEngine as SerialSocket.write(), sliced into payloadSize packets
+ *   - one packet per packetInterval is confirmed and echoed to the benchmark, like one write per connection event
+ */
+final class EchoLink implements Benchmark.Link, PacketLink {
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long WRITE_BLOCK_TIMEOUT = 2000;
+
+    private final SerialEngine engine;
+    private final long packetIntervalNanos;
+    private volatile Benchmark benchmark;
+    private volatile boolean running;
+    private ScheduledExecutorService executor;
+    private long nextSlot; // guarded by engine queue, send() is only called by one thread at a time
+
+    EchoLink(int payloadSize, int packetIntervalMicros) {
+        this.packetIntervalNanos = packetIntervalMicros * 1000L;
+        engine = new SerialEngine(this, e -> { }, QUEUE_CAPACITY, WRITE_BLOCK_TIMEOUT, payloadSize);
+    }
+
+    void start(Benchmark benchmark) {
+        this.benchmark = benchmark;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "echo"));
+        engine.restart();
+        running = true;
+    }
+
+    void stop() {
+        running = false;
+        if(executor != null)
+            executor.shutdownNow();
+        engine.clear();
+    }
+
+    @Override
+    public void write(byte[] frame) throws IOException {
+        engine.write(frame, WriteQueue.Priority.Control, WriteQueue.Overflow.Block, WriteQueue.NO_KEY);
+    }
+
+    @Override
+    public boolean canSend() {
+        return running;
+    }
+
+    @Override
+    public int send(byte[] packet) {
+        byte[] data = Arrays.copyOf(packet, packet.length); // peek slab is reused
+        long now = System.nanoTime();
+        nextSlot = Math.max(nextSlot + packetIntervalNanos, now);
+        try {
+            executor.schedule(() -> {
+                engine.onReceived(data.length, System.nanoTime());
+                benchmark.onReceive(data);
+                engine.onSent();
+            }, nextSlot - now, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            return FAILED; // stopped
+        }
+        return SENT;
+    }
+
+    @Override
+    public void scheduleFlush(long delayNanos) {
+        try {
+            executor.schedule(engine::writeNext, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+}
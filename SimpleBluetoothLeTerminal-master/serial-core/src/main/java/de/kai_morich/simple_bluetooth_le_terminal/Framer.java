@@ -0,0 +1,89 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * pipeline stage splitting the received byte stream into frames, independent of packet boundaries
+ *   - newline: a frame ends after LF, the LF is kept so text keeps its line breaks
+ *   - STX/ETX: the bytes between STX and ETX, without both, bytes outside of frames are dropped
+ *   - longer frames than maxFrame are emitted in parts, so a missing delimiter does not grow a buffer
+ *
+ * text after the last LF is emitted when the next LF arrives
+ */
+final class Framer implements Pipeline.Stage {
+
+    static final byte STX = 0x02;
+    static final byte ETX = 0x03;
+
+    private final int start;    // -1 = frame starts after previous end
+    private final byte end;
+    private final boolean keepEnd;
+    private final int maxFrame;
+
+    private BufferPool.Buffer frame; // partial frame
+    private boolean inFrame;
+
+    static Framer newline(int maxFrame) {
+        return new Framer(-1, (byte) '\n', true, maxFrame);
+    }
+
+    static Framer stxEtx(int maxFrame) {
+        return new Framer(STX, ETX, false, maxFrame);
+    }
+
+    private Framer(int start, byte end, boolean keepEnd, int maxFrame) {
+        this.start = start;
+        this.end = end;
+        this.keepEnd = keepEnd;
+        this.maxFrame = maxFrame;
+        inFrame = start < 0;
+    }
+
+    @Override
+    public void process(BufferPool.Buffer buffer, Pipeline.Output out) {
+        byte[] data = buffer.data;
+        for(int pos = 0; pos < buffer.length; pos++) {
+            byte b = data[pos];
+            if(!inFrame) {
+                if(b == start)
+                    inFrame = true;
+                continue;
+            }
+            if(b == end) {
+                if(keepEnd)
+                    append(b, out); // emits if maxFrame reached
+                else if(frame == null)
+                    frame = out.acquire(0); // empty STX/ETX frame
+                if(frame != null) {
+                    out.emit(frame);
+                    frame = null;
+                }
+                inFrame = start < 0;
+                continue;
+            }
+            if(start >= 0 && b == start) { // STX without ETX, drop partial frame
+                reset();
+                inFrame = true;
+                continue;
+            }
+            append(b, out);
+        }
+        buffer.release();
+    }
+
+    @Override
+    public void reset() {
+        if(frame != null)
+            frame.release();
+        frame = null;
+        inFrame = start < 0;
+    }
+
+    private void append(byte b, Pipeline.Output out) {
+        if(frame == null)
+            frame = out.acquire(maxFrame);
+        frame.data[frame.length++] = b;
+        if(frame.length == maxFrame) {
+            out.emit(frame);
+            frame = null;
+        }
+    }
+}
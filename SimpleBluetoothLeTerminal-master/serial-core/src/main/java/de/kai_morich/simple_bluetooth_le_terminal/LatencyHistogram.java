@@ -0,0 +1,69 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Arrays;
+
+/**
+ * latency histogram with power of 2 microsecond buckets.
+ * record() does not allocate. Not thread safe, caller synchronizes.
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = 32; // bucket b counts values < 2^b us, last bucket up to ~35 min
+
+    private final long[] counts = new long[BUCKETS];
+    private long count, sumMicros, maxMicros;
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS-1, 64 - Long.numberOfLeadingZeros(micros));
+        counts[bucket]++;
+        count++;
+        sumMicros += micros;
+        maxMicros = Math.max(maxMicros, micros);
+    }
+
+    long getCount() { return count; }
+    long getAvgMicros() { return count == 0 ? 0 : sumMicros / count; }
+    long getMaxMicros() { return maxMicros; }
+
+    /**
+     * @return upper bound of the bucket containing the percentile, capped at max
+     */
+    long getPercentileMicros(double percentile) {
+        if(count == 0)
+            return 0;
+        long rank = (long)Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for(int b=0; b<BUCKETS; b++) {
+            seen += counts[b];
+            if(seen >= rank && seen > 0)
+                return Math.min(maxMicros, (1L << b) - 1);
+        }
+        return maxMicros;
+    }
+
+    void copyTo(LatencyHistogram other) {
+        System.arraycopy(counts, 0, other.counts, 0, BUCKETS);
+        other.count = count;
+        other.sumMicros = sumMicros;
+        other.maxMicros = maxMicros;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sumMicros = 0;
+        maxMicros = 0;
+    }
+
+    @Override
+    public String toString() {
+        if(count == 0)
+            return "n=0";
+        return "n=" + count
+                + " avg=" + getAvgMicros() + "us"
+                + " p50<=" + getPercentileMicros(50) + "us"
+                + " p99<=" + getPercentileMicros(99) + "us"
+                + " max=" + maxMicros + "us";
+    }
+}
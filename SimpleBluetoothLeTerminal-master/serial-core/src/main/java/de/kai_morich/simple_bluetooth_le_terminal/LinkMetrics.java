@@ -0,0 +1,87 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * live metrics of one SerialEngine
+ *   - onTx() and onRx() are called on the hot path, they only update counters and a histogram
+ *   - copyTo() copies them into a caller owned Snapshot, which computes rates against its previous copy,
+ *     so periodic polling does not allocate either
+ */
+final class LinkMetrics {
+
+    static final class Snapshot {
+        long txBytes, txPackets, rxBytes, rxPackets;  // since connect
+        long txBytesPerSecond, txPacketsPerSecond, rxBytesPerSecond, rxPacketsPerSecond; // since previous snapshot
+        int queueDepth;                 // queued + in flight packets
+        int rssi;                       // dBm, 0 = not read yet
+        long uiBatches, uiChunks, uiBatchMax, readOverflows; // SerialService read delivery, chunks merged per batch, dropped by UI sink
+        final LatencyHistogram writeRtt = new LatencyHistogram();     // write start to onCharacteristicWrite
+        final LatencyHistogram interArrival = new LatencyHistogram(); // between notifications
+        final LatencyHistogram telemetryLateness = new LatencyHistogram(); // telemetry tick behind schedule, filled by UI
+
+        private long nanos, prevNanos;
+        private long prevTxBytes, prevTxPackets, prevRxBytes, prevRxPackets;
+
+        void updateRates(long now) {
+            prevNanos = nanos;
+            nanos = now;
+            long elapsed = nanos - prevNanos;
+            if(prevNanos != 0 && elapsed > 0) {
+                txBytesPerSecond   = (txBytes   - prevTxBytes)   * 1_000_000_000L / elapsed;
+                txPacketsPerSecond = (txPackets - prevTxPackets) * 1_000_000_000L / elapsed;
+                rxBytesPerSecond   = (rxBytes   - prevRxBytes)   * 1_000_000_000L / elapsed;
+                rxPacketsPerSecond = (rxPackets - prevRxPackets) * 1_000_000_000L / elapsed;
+            }
+            prevTxBytes = txBytes;
+            prevTxPackets = txPackets;
+            prevRxBytes = rxBytes;
+            prevRxPackets = rxPackets;
+        }
+
+        @Override
+        public String toString() {
+            return "tx " + txBytesPerSecond + " B/s, " + txPacketsPerSecond + " pkt/s\n"
+                    + "rx " + rxBytesPerSecond + " B/s, " + rxPacketsPerSecond + " pkt/s\n"
+                    + "queue " + queueDepth + ", rssi " + rssi + " dBm\n"
+                    + "write rtt " + writeRtt + "\n"
+                    + "rx interval " + interArrival + "\n"
+                    + "ui batches " + uiBatches + ", chunks/batch " + (uiBatches > 0 ? uiChunks / uiBatches : 0) + " max " + uiBatchMax
+                    + ", ui drops " + readOverflows + "\n"
+                    + "telemetry late " + telemetryLateness;
+        }
+    }
+
+    private long txBytes, txPackets, rxBytes, rxPackets;
+    private long lastRxNanos;
+    private final LatencyHistogram interArrival = new LatencyHistogram();
+
+    synchronized void onTx(int bytes) {
+        txBytes += bytes;
+        txPackets++;
+    }
+
+    synchronized void onRx(int bytes, long now) {
+        rxBytes += bytes;
+        rxPackets++;
+        if(lastRxNanos != 0)
+            interArrival.record(now - lastRxNanos);
+        lastRxNanos = now;
+    }
+
+    /**
+     * after (re)connect, so the gap is not recorded as inter-arrival time
+     */
+    synchronized void restart() {
+        lastRxNanos = 0;
+    }
+
+    synchronized long getTxBytes() { return txBytes; }
+    synchronized long getRxBytes() { return rxBytes; }
+
+    synchronized void copyTo(Snapshot snapshot) {
+        snapshot.txBytes = txBytes;
+        snapshot.txPackets = txPackets;
+        snapshot.rxBytes = rxBytes;
+        snapshot.rxPackets = rxPackets;
+        interArrival.copyTo(snapshot.interArrival);
+    }
+}
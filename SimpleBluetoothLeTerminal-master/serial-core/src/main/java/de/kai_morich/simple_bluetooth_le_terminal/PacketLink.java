@@ -0,0 +1,30 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * packet transport below SerialEngine, e.g. a BLE GATT characteristic.
+ * Confirms each started packet with SerialEngine.onSent(), passes received packets to SerialEngine.onReceived()
+ */
+interface PacketLink {
+
+    int SENT     = 0;  // started, confirmed later by SerialEngine.onSent()
+    int DEFERRED = 1;  // not started, as other operation first. Link calls SerialEngine.writeNext() later
+    int BUSY     = 2;  // not started, retried after next SerialEngine.onSent(), or via scheduleFlush() if none in flight
+    int FAILED   = 3;
+
+    /**
+     * called while the write queue is locked, so must not block
+     * @return false while not connected or held back by flow control. Link calls SerialEngine.writeNext() when writable again
+     */
+    boolean canSend();
+
+    /**
+     * packet array is only valid during this call
+     * @return SENT, DEFERRED, BUSY or FAILED
+     */
+    int send(byte[] packet);
+
+    /**
+     * call SerialEngine.writeNext() after delay, to send a packet held back for coalescing or rejected as busy
+     */
+    void scheduleFlush(long delayNanos);
+}
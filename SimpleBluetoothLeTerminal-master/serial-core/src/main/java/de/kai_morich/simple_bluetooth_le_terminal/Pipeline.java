@@ -0,0 +1,252 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * processing of received data between SerialSocket and its consumers
+ *
+ *   push() -> stage 1 -> ... -> stage n -> fan-out -> sink queue -> consumer thread
+ *
+ *   - stages run in the pushing thread (the GATT callback thread) and pass pooled buffers,
+ *     e.g. Framer, then PipelineStages decoders and filters
+ *   - fan-out retains each output buffer once per sink, no data is copied
+ *   - each sink has its own bounded ReadRing and Overflow policy, so a slow consumer
+ *     only loses own data and never blocks the other sinks or the producer
+ *   - a sink's signal runs after each offer in the pushing thread, it should only schedule draining
+ *
+ * push() is called by one thread at a time and takes no lock. setStages() and reset() from other
+ * threads are applied by the pushing thread before the next push, so the producer never waits
+ * for a lock held by the UI thread. Partial data kept by replaced stages is dropped.
+ */
+final class Pipeline {
+
+    /**
+     * a stage owns the buffer passed to process() and has to emit or release it
+     */
+    interface Stage {
+        void process(BufferPool.Buffer buffer, Output out);
+        void reset(); // drop partial data, e.g. after reconnect
+    }
+
+    interface Output {
+        BufferPool.Buffer acquire(int size);
+        void emit(BufferPool.Buffer buffer);
+    }
+
+    enum Overflow {
+        DropNewest,     // keep queued data, drop offered
+        DropOldest      // drop oldest queued data
+    }
+
+    static final class Sink {
+        private final String name;
+        private final Overflow overflow;
+        private final Runnable signal;
+        private final ReadRing<BufferPool.Buffer> queue;
+        private volatile long frames, bytes, dropped, maxDepth; // only written by producer
+
+        /**
+         * capacity is rounded up to a power of 2
+         */
+        private Sink(String name, int capacity, Overflow overflow, Runnable signal) {
+            this.name = name;
+            this.queue = new ReadRing<>(capacity);
+            this.overflow = overflow;
+            this.signal = signal;
+        }
+
+        /**
+         * producer only
+         */
+        private void offer(BufferPool.Buffer buffer) {
+            buffer.retain();
+            if(!queue.offer(buffer)) {
+                dropped++;
+                if(overflow == Overflow.DropNewest) {
+                    buffer.release();
+                    buffer = null;
+                } else {
+                    BufferPool.Buffer oldest = queue.poll(); // only the producer adds, so there is space afterwards
+                    if(oldest != null)
+                        oldest.release();
+                    queue.offer(buffer);
+                }
+            }
+            if(buffer != null) {
+                frames++;
+                bytes += buffer.length;
+                int depth = queue.size();
+                if(depth > maxDepth)
+                    maxDepth = depth;
+            }
+            if(signal != null)
+                signal.run();
+        }
+
+        /**
+         * consumer has to release the buffer
+         * @return null if empty
+         */
+        BufferPool.Buffer poll() {
+            return queue.poll();
+        }
+
+        /**
+         * move all queued buffers, consumer has to release them
+         */
+        int drainTo(ArrayDeque<BufferPool.Buffer> buffers) {
+            int size = 0;
+            BufferPool.Buffer buffer;
+            while((buffer = queue.poll()) != null) {
+                buffers.add(buffer);
+                size++;
+            }
+            return size;
+        }
+
+        /**
+         * copy queued data and release the buffers
+         */
+        int drainCopies(ArrayDeque<byte[]> datas) {
+            int size = 0;
+            BufferPool.Buffer buffer;
+            while((buffer = poll()) != null) {
+                datas.add(buffer.toByteArray());
+                buffer.release();
+                size++;
+            }
+            return size;
+        }
+
+        void clear() {
+            BufferPool.Buffer buffer;
+            while((buffer = poll()) != null)
+                buffer.release();
+        }
+
+        String getName() {
+            return name;
+        }
+        long getFrames() {
+            return frames;
+        }
+        long getBytes() {
+            return bytes;
+        }
+        long getDropped() {
+            return dropped;
+        }
+        /**
+         * frames queued, not yet taken by the consumer. any thread
+         */
+        int getDepth() {
+            return queue.size();
+        }
+        long getMaxDepth() {
+            return maxDepth;
+        }
+    }
+
+    /**
+     * output of stage i-1, passes buffers to stage i, after the last stage to the sinks
+     */
+    private final class Link implements Output {
+        private final Stage[] stages;
+        private final Link next;
+        private final int index;
+
+        Link(Stage[] stages, int index) {
+            this.stages = stages;
+            this.index = index;
+            this.next = index < stages.length ? new Link(stages, index + 1) : null;
+        }
+
+        @Override
+        public BufferPool.Buffer acquire(int size) {
+            return pool.acquire(size);
+        }
+
+        @Override
+        public void emit(BufferPool.Buffer buffer) {
+            if(next != null) {
+                stages[index].process(buffer, next);
+            } else {
+                fanOut(buffer);
+            }
+        }
+    }
+
+    private final BufferPool pool;
+    private final CopyOnWriteArrayList<Sink> sinks = new CopyOnWriteArrayList<>();
+    private final AtomicReference<Stage[]> pendingStages = new AtomicReference<>();
+    private final AtomicBoolean pendingReset = new AtomicBoolean();
+    private Stage[] stages; // only used by pushing thread
+    private Link head;      // only used by pushing thread
+
+    Pipeline(BufferPool pool, Stage... stages) {
+        this.pool = pool;
+        this.stages = stages.clone();
+        head = new Link(this.stages, 0);
+    }
+
+    /**
+     * any thread, applied before the next push()
+     */
+    void setStages(Stage... stages) {
+        pendingStages.set(stages.clone());
+    }
+
+    /**
+     * any thread, applied before the next push()
+     */
+    void reset() {
+        pendingReset.set(true);
+    }
+
+    /**
+     * one thread at a time. data is copied into a pooled buffer, so the caller can reuse it
+     */
+    void push(byte[] data) {
+        if(pendingStages.get() != null || pendingReset.get())
+            applyPending();
+        BufferPool.Buffer buffer = pool.acquire(data.length);
+        System.arraycopy(data, 0, buffer.data, 0, data.length);
+        buffer.length = data.length;
+        head.emit(buffer);
+    }
+
+    private void applyPending() {
+        pendingReset.set(false);
+        for(Stage stage : stages)
+            stage.reset();
+        Stage[] newStages = pendingStages.getAndSet(null);
+        if(newStages != null) {
+            stages = newStages;
+            head = new Link(stages, 0);
+        }
+    }
+
+    Sink addSink(String name, int capacity, Overflow overflow, Runnable signal) {
+        Sink sink = new Sink(name, capacity, overflow, signal);
+        sinks.add(sink);
+        return sink;
+    }
+
+    void removeSink(Sink sink) {
+        sinks.remove(sink);
+        sink.clear();
+    }
+
+    BufferPool getPool() {
+        return pool;
+    }
+
+    private void fanOut(BufferPool.Buffer buffer) {
+        for(Sink sink : sinks)
+            sink.offer(buffer);
+        buffer.release();
+    }
+}
@@ -0,0 +1,105 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * decoder and filter stages for Pipeline, placed after an optional Framer
+ */
+final class PipelineStages {
+
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    interface Predicate {
+        boolean accept(byte[] data, int length);
+    }
+
+    private PipelineStages() {
+    }
+
+    /**
+     * remove CR directly before LF, also if CR and LF are received in separate chunks.
+     * A CR at the end of a chunk is held back until the next chunk shows if LF follows.
+     */
+    static Pipeline.Stage crLf() {
+        return new Pipeline.Stage() {
+            private boolean pendingCr;
+
+            @Override
+            public void process(BufferPool.Buffer buffer, Pipeline.Output out) {
+                BufferPool.Buffer result = out.acquire(buffer.length + 1);
+                byte[] src = buffer.data, dst = result.data;
+                int length = buffer.length, n = 0;
+                if(pendingCr && (length == 0 || src[0] != '\n'))
+                    dst[n++] = '\r';
+                pendingCr = false;
+                for(int pos = 0; pos < length; pos++) {
+                    if(src[pos] == '\r') {
+                        if(pos == length - 1) {
+                            pendingCr = true;
+                            continue;
+                        }
+                        if(src[pos + 1] == '\n')
+                            continue;
+                    }
+                    dst[n++] = src[pos];
+                }
+                buffer.release();
+                result.length = n;
+                if(n > 0)
+                    out.emit(result);
+                else
+                    result.release();
+            }
+
+            @Override
+            public void reset() {
+                pendingCr = false;
+            }
+        };
+    }
+
+    /**
+     * hex text as TextUtil.toHexString, one line per chunk or frame
+     */
+    static Pipeline.Stage hex() {
+        return new Pipeline.Stage() {
+            @Override
+            public void process(BufferPool.Buffer buffer, Pipeline.Output out) {
+                BufferPool.Buffer result = out.acquire(Math.max(buffer.length * 3, 1));
+                byte[] src = buffer.data, dst = result.data;
+                int n = 0;
+                for(int pos = 0; pos < buffer.length; pos++) {
+                    if(pos > 0)
+                        dst[n++] = ' ';
+                    dst[n++] = HEX_DIGITS[(src[pos] >> 4) & 0xf];
+                    dst[n++] = HEX_DIGITS[src[pos] & 0xf];
+                }
+                dst[n++] = '\n';
+                buffer.release();
+                result.length = n;
+                out.emit(result);
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+
+    /**
+     * drop chunks or frames not accepted by predicate
+     */
+    static Pipeline.Stage filter(Predicate predicate) {
+        return new Pipeline.Stage() {
+            @Override
+            public void process(BufferPool.Buffer buffer, Pipeline.Output out) {
+                if(predicate.accept(buffer.data, buffer.length))
+                    out.emit(buffer);
+                else
+                    buffer.release();
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * single producer lock-free ring of received data, used as Pipeline.Sink queue.
+ *
+ * producer is the GATT callback thread, consumer the thread delivering to the UI.
+ * Slots are published by ordered writes of tail, so neither side takes a lock.
+ * head is advanced by compare-and-set, so the producer can also poll() to drop the oldest
+ * entry when full, and a second consumer (e.g. while detached) does not corrupt the ring.
+ */
+final class ReadRing<T> {
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to read, advanced by poll()
+    private final AtomicLong tail = new AtomicLong(); // next slot to write, written by producer
+
+    ReadRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1; // power of 2 for index masking
+        slots = new Object[size];
+        mask = size-1;
+    }
+
+    /**
+     * producer only
+     * @return false if full
+     */
+    boolean offer(T data) {
+        long t = tail.get();
+        if(t - head.get() == slots.length)
+            return false;
+        slots[(int)t & mask] = data;
+        tail.lazySet(t+1); // publishes slot
+        return true;
+    }
+
+    /**
+     * any thread
+     * @return null if empty
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        while(true) {
+            long h = head.get();
+            if(h == tail.get())
+                return null;
+            T data = (T) slots[(int)h & mask];
+            if(head.compareAndSet(h, h+1)) // slot is not cleared, the producer might already reuse it
+                return data;
+        }
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    int size() {
+        long h = head.get(); // before tail, so size is never negative
+        return (int)(tail.get() - h);
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,255 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+
+/**
+ * transport independent write and read path of a serial connection
+ *   - writes are queued in a WriteQueue, sliced into payloadSize packets or coalesced
+ *   - up to window packets are sent before the PacketLink confirms them with onSent()
+ *   - a packet rejected as busy stays first in the queue and is retried on the next confirmation,
+ *     or after BUSY_RETRY_NANOS if nothing is in flight. Fails after MAX_BUSY_RETRIES delayed retries
+ *   - tx/rx bytes, packets and inter-arrival time are counted in LinkMetrics
+ *
+ * transports implement PacketLink, like SerialSocket for BLE GATT or EchoLink as local loopback
+ */
+final class SerialEngine {
+
+    interface Listener {
+        void onWriteFailed(IOException e);
+    }
+
+    private static final int MAX_BUSY_RETRIES = 20;             // as GattScheduler
+    private static final long BUSY_RETRY_NANOS = 10_000_000L;   // as GattScheduler
+
+    private final PacketLink link;
+    private final Listener listener;
+    private final WriteQueue queue;
+    private final long blockTimeoutMillis;
+    private final LinkMetrics metrics = new LinkMetrics();
+
+    // guarded by queue
+    private int payloadSize;
+    private int window = 1;
+    private boolean coalescing;
+    private long flushDeadlineNanos;
+    private boolean writing, writeAgain;
+    private boolean sending;    // link.send() not yet returned
+    private boolean earlyAck;   // onSent() for the packet of a send() not yet returned
+    private int busyRetries;
+
+    /**
+     * @param capacity            packets per priority, queued + in flight
+     * @param blockTimeoutMillis  for WriteQueue.Overflow.Block
+     */
+    SerialEngine(PacketLink link, Listener listener, int capacity, long blockTimeoutMillis, int payloadSize) {
+        this.link = link;
+        this.listener = listener;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.payloadSize = payloadSize;
+        queue = new WriteQueue(capacity);
+    }
+
+    /**
+     * applies to later writes
+     */
+    void setPayloadSize(int payloadSize) {
+        synchronized (queue) { this.payloadSize = payloadSize; }
+    }
+    int getPayloadSize() {
+        synchronized (queue) { return payloadSize; }
+    }
+
+    /**
+     * packets sent before confirmation
+     */
+    void setWindow(int window) {
+        synchronized (queue) { this.window = Math.max(1, window); }
+    }
+    int getWindow() {
+        synchronized (queue) { return window; }
+    }
+
+    /**
+     * merge small writes into payloadSize packets.
+     * A packet that is not full is held back up to flushDeadlineMicros to collect more data,
+     * so 0 only merges writes queued while the previous packet is in flight.
+     */
+    void setCoalescing(boolean enabled, int flushDeadlineMicros) {
+        synchronized (queue) {
+            coalescing = enabled;
+            flushDeadlineNanos = flushDeadlineMicros * 1000L;
+        }
+    }
+
+    /**
+     * data is sliced into payloadSize packets without copy, so caller must not modify it afterwards
+     * @return handle completed when the last packet is confirmed, or dropped
+     */
+    WriteHandle write(byte[] data, WriteQueue.Priority priority, WriteQueue.Overflow overflow, int key) throws IOException {
+        WriteHandle handle = new WriteHandle();
+        synchronized (queue) {
+            if(coalescing && overflow != WriteQueue.Overflow.LatestValue)
+                queue.addCoalesced(data, payloadSize, System.nanoTime(), priority, overflow, handle, blockTimeoutMillis);
+            else
+                queue.add(data, payloadSize, priority, overflow, key, handle, blockTimeoutMillis);
+        }
+        writeNext();
+        return handle;
+    }
+
+    /**
+     * oldest packet in flight confirmed by the link
+     * @return its length, 0 if none in flight
+     */
+    int onSent() {
+        int length;
+        synchronized (queue) {
+            if(sending && queue.inFlight() == 0) {
+                earlyAck = true; // confirmation overtook send(), acknowledged after remove() in writeNext()
+                return 0;
+            }
+            length = queue.ack();
+        }
+        if(length > 0)
+            metrics.onTx(length);
+        writeNext();
+        return length;
+    }
+
+    /**
+     * received packet, only counted
+     */
+    void onReceived(int length, long now) {
+        metrics.onRx(length, now);
+    }
+
+    /**
+     * after (re)connect
+     */
+    void restart() {
+        synchronized (queue) { busyRetries = 0; }
+        metrics.restart();
+    }
+
+    /**
+     * queued writes of priority are kept for the next connection, other writes and packets in flight are dropped
+     */
+    void keepQueued(WriteQueue.Priority priority) {
+        synchronized (queue) { queue.keepQueued(priority); }
+    }
+
+    /**
+     * completes pending WriteHandles as dropped
+     */
+    void clear() {
+        synchronized (queue) { queue.clear(); }
+    }
+
+    /**
+     * start writes until window is full. Only one thread starts writes at a time,
+     * others only set writeAgain, so packets are not reordered or sent twice.
+     */
+    void writeNext() {
+        synchronized (queue) {
+            if(writing) {
+                writeAgain = true;
+                return;
+            }
+            writing = true;
+        }
+        long hold = 0;
+        boolean retry = false;
+        boolean failed = false;
+        while(true) {
+            byte[] data = null;
+            synchronized (queue) {
+                writeAgain = false;
+                if (queue.inFlight() < window && !queue.isEmpty() && link.canSend()) {
+                    long now = System.nanoTime();
+                    data = queue.peek(now, flushDeadlineNanos);
+                    if(data == null)
+                        hold = queue.holdNanos(now, flushDeadlineNanos);
+                }
+                if(data == null) {
+                    writing = false;
+                    break;
+                }
+                sending = true;
+            }
+            int result = link.send(data);
+            synchronized (queue) {
+                sending = false;
+                if(result == PacketLink.SENT) {
+                    queue.remove();
+                    busyRetries = 0;
+                    if(earlyAck) {
+                        earlyAck = false;
+                        metrics.onTx(queue.ack());
+                    }
+                    continue;
+                }
+                earlyAck = false;
+                queue.unpeek();
+                if(result == PacketLink.DEFERRED) {
+                    // link calls writeNext() again
+                } else if(result == PacketLink.BUSY && queue.inFlight() > 0) {
+                    // busy while previous pipelined packet not yet confirmed, packet stays first and is retried on next onSent()
+                    if(writeAgain)
+                        continue;
+                } else if(result == PacketLink.BUSY && busyRetries < MAX_BUSY_RETRIES) {
+                    // busy with nothing in flight, e.g. other app or GATT operation, no onSent() will follow
+                    busyRetries++;
+                    retry = true;
+                } else {
+                    failed = true;
+                }
+                writing = false;
+                break;
+            }
+        }
+        if(retry)
+            link.scheduleFlush(hold > 0 ? Math.min(hold, BUSY_RETRY_NANOS) : BUSY_RETRY_NANOS);
+        else if(hold > 0)
+            link.scheduleFlush(hold);
+        if(failed)
+            listener.onWriteFailed(new IOException("write failed"));
+    }
+
+    /*
+     * statistics
+     */
+    long getTxBytes() { return metrics.getTxBytes(); }
+    long getRxBytes() { return metrics.getRxBytes(); }
+
+    /**
+     * fills counters and queue depth of caller owned snapshot
+     */
+    void getMetrics(LinkMetrics.Snapshot snapshot) {
+        metrics.copyTo(snapshot);
+        snapshot.queueDepth = getQueueSize();
+    }
+    int getQueueSize() {
+        synchronized (queue) { return queue.size() + queue.inFlight(); }
+    }
+    int getQueued() {
+        synchronized (queue) { return queue.size(); }
+    }
+    long getDroppedWrites() {
+        synchronized (queue) { return queue.getDroppedWrites(); }
+    }
+    long getQueueDelayAvgMicros(WriteQueue.Priority priority) {
+        synchronized (queue) { return queue.getQueueDelayAvgNanos(priority) / 1000; }
+    }
+    long getQueueDelayMaxMicros(WriteQueue.Priority priority) {
+        synchronized (queue) { return queue.getQueueDelayMaxNanos(priority) / 1000; }
+    }
+    long getCoalescedPackets() {
+        synchronized (queue) { return queue.getCoalescedFrames(); }
+    }
+    long getCoalesceDelayAvgMicros() {
+        synchronized (queue) { return queue.getCoalesceDelayAvgNanos() / 1000; }
+    }
+    long getCoalesceDelayMaxMicros() {
+        synchronized (queue) { return queue.getCoalesceDelayMaxNanos() / 1000; }
+    }
+}
@@ -0,0 +1,200 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * binary log of all packets sent and received on a connection
+ *   - record() only copies into the active buffer under a short lock. The "recorder" thread swaps
+ *     buffers and writes them with a FileChannel, so the GATT callback thread never waits for IO
+ *   - if the active buffer is full, the record is dropped and counted
+ *   - files are rotated at maxFileSize, oldest files beyond maxFiles are deleted
+ *
+ * file   = header + records, big endian
+ * header = magic "BLEREC01", long wall clock millis and long nanoTime at start
+ * record = long nanoTime, byte direction, unsigned short length, data
+ */
+final class SessionRecorder {
+
+    static final byte RX = 0;
+    static final byte TX = 1;
+    static final byte[] MAGIC = {'B', 'L', 'E', 'R', 'E', 'C', '0', '1'};
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 11;
+    static final String FILE_PREFIX = "session-";
+    static final String FILE_SUFFIX = ".bin";
+
+    private static final long FLUSH_INTERVAL = 100; // ms
+
+    private final File dir;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private ByteBuffer active;
+    private long records, dropped;
+    private boolean running;
+
+    // recorder thread only
+    private ByteBuffer flushing;
+    private FileChannel channel;
+    private File file;
+    private long fileSize;
+
+    private Thread thread;
+    private volatile IOException error;
+
+    /**
+     * @param bufferSize  per buffer, two buffers are used
+     */
+    SessionRecorder(File dir, int bufferSize, long maxFileSize, int maxFiles) {
+        this.dir = dir;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        active = ByteBuffer.allocate(bufferSize);
+        flushing = ByteBuffer.allocate(bufferSize);
+    }
+
+    void start() throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        openFile();
+        synchronized (lock) {
+            running = true;
+        }
+        thread = new Thread(this::run, "recorder");
+        thread.start();
+    }
+
+    /**
+     * writes remaining records and closes the file
+     */
+    void stop() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        if(thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * non blocking, data is copied
+     */
+    void record(byte direction, byte[] data, long nanos) {
+        synchronized (lock) {
+            if(!running)
+                return;
+            if(active.remaining() < RECORD_HEADER_SIZE + data.length || data.length > 0xffff) {
+                dropped++;
+                return;
+            }
+            active.putLong(nanos).put(direction).putShort((short) data.length).put(data);
+            records++;
+            if(active.position() > active.capacity() / 2)
+                lock.notify();
+        }
+    }
+
+    long getRecords() {
+        synchronized (lock) { return records; }
+    }
+    long getDropped() {
+        synchronized (lock) { return dropped; }
+    }
+    File getFile() {
+        return file;
+    }
+    IOException getError() {
+        return error;
+    }
+
+    private void run() {
+        try {
+            boolean stop;
+            do {
+                synchronized (lock) {
+                    if(running && active.position() <= active.capacity() / 2)
+                        lock.wait(FLUSH_INTERVAL);
+                    stop = !running;
+                    ByteBuffer buffer = active;
+                    active = flushing;
+                    flushing = buffer;
+                }
+                flushing.flip();
+                if(flushing.hasRemaining())
+                    write(flushing);
+                flushing.clear();
+            } while(!stop);
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            error = e;
+            synchronized (lock) {
+                running = false;
+            }
+        } finally {
+            closeFile();
+        }
+    }
+
+    /**
+     * buffer contains only whole records, so rotating before a write never splits a record
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        if(fileSize > HEADER_SIZE && fileSize + buffer.remaining() > maxFileSize) {
+            closeFile();
+            openFile();
+        }
+        while(buffer.hasRemaining())
+            fileSize += channel.write(buffer);
+    }
+
+    private void openFile() throws IOException {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date());
+        file = new File(dir, FILE_PREFIX + time + FILE_SUFFIX);
+        channel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putLong(System.currentTimeMillis()).putLong(System.nanoTime()).flip();
+        while(header.hasRemaining())
+            channel.write(header);
+        fileSize = HEADER_SIZE;
+        deleteOldFiles();
+    }
+
+    private void closeFile() {
+        if(channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    /**
+     * file names sort by time
+     */
+    private void deleteOldFiles() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if(files == null || files.length <= maxFiles)
+            return;
+        Arrays.sort(files);
+        for(int i = 0; i < files.length - maxFiles; i++)
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+    }
+}
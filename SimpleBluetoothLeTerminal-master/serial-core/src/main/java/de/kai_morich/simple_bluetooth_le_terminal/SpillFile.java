@@ -0,0 +1,115 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * append-only memory mapped file of data chunks, used when the in-memory backlog is full
+ *   - the file is written in fixed size segments, each mapped once, so append is a memory copy
+ *   - chunks do not cross segments, so each segment can be read as one page without index
+ *   - record = int length + data, a 0 length after the last record ends the segment
+ *
+ * the file is created on first append and reused after clear()
+ */
+final class SpillFile {
+
+    private final File file;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer segment; // current write segment
+    private int segments;             // written, including current
+    private long bytes, chunks;
+
+    SpillFile(File file, int segmentSize, long maxSize) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, maxSize / segmentSize);
+    }
+
+    /**
+     * @return false if file is full or not writable, chunk is not stored then
+     */
+    synchronized boolean append(byte[] data) {
+        int size = 4 + data.length;
+        if(size + 4 > segmentSize)
+            return false;
+        if(segment == null || segment.remaining() < size) {
+            if(segments == maxSegments)
+                return false;
+            try {
+                if(channel == null) {
+                    raf = new RandomAccessFile(file, "rw");
+                    channel = raf.getChannel();
+                }
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, (long) segments * segmentSize, segmentSize);
+            } catch (IOException e) {
+                return false;
+            }
+            segments++;
+        }
+        segment.putInt(data.length).put(data);
+        if(segment.remaining() >= 4)
+            segment.putInt(segment.position(), 0); // old content after clear() is not read
+        bytes += data.length;
+        chunks++;
+        return true;
+    }
+
+    /**
+     * @param page  0 = oldest, getPages()-1 = segment currently written
+     */
+    synchronized void readPage(int page, ArrayDeque<byte[]> datas) throws IOException {
+        if(page < 0 || page >= segments)
+            throw new IndexOutOfBoundsException("page " + page);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, (long) page * segmentSize, segmentSize);
+        while(buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if(length <= 0 || length > buffer.remaining())
+                break;
+            byte[] data = new byte[length];
+            buffer.get(data);
+            datas.add(data);
+        }
+    }
+
+    synchronized int getPages() {
+        return segments;
+    }
+    synchronized long getBytes() {
+        return bytes;
+    }
+    synchronized long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * drop content, file is kept for next append
+     */
+    synchronized void clear() {
+        segment = null;
+        segments = 0;
+        bytes = 0;
+        chunks = 0;
+    }
+
+    synchronized void close() {
+        clear();
+        if(raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+            channel = null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,46 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * completion of a SerialEngine write.
+ * Done when the last packet of the write was confirmed by onCharacteristicWrite,
+ * or when the write was dropped by the queue overflow policy or disconnect.
+ */
+final class WriteHandle {
+
+    WriteHandle next; // chain of writes coalesced into the same packet, guarded by WriteQueue
+
+    private boolean done;
+    private boolean dropped;
+    private long doneNanos;
+
+    synchronized boolean isDone() { return done; }
+    synchronized boolean isDropped() { return dropped; }
+
+    /**
+     * System.nanoTime() of completion, 0 while not done
+     */
+    synchronized long getDoneNanos() { return doneNanos; }
+
+    /**
+     * @return true if done within timeout
+     */
+    synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while(!done) {
+            long remaining = end - System.currentTimeMillis();
+            if(remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    synchronized void complete(boolean dropped) {
+        if(done)
+            return;
+        this.done = true;
+        this.dropped = dropped;
+        this.doneNanos = System.nanoTime();
+        notifyAll();
+    }
+}
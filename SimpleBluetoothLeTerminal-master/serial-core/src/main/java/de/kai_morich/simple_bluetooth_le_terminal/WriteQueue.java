@@ -0,0 +1,500 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * bounded write packet queue with strict priority lanes
+ *   - add() slices data into payload sized packets by offset and length, without copying
+ *   - addCoalesced() merges small writes into the last packet, using a slab owned by the ring slot
+ *   - peek() returns the first packet of the highest priority lane as array, copied into a reusable slab
+ *     only if it is a slice. remove() moves it to the sent packets once the write was started,
+ *     so a busy rejected write stays first
+ *   - ack() releases the oldest sent packet and completes its WriteHandle
+ *
+ * sent packets keep their ring slot until acknowledged, so the lane capacity bounds queued + in flight packets.
+ * A lower priority lane gets one packet after STARVATION_LIMIT packets of higher lanes.
+ *
+ * not thread safe, caller synchronizes on this queue, which is also used to wait for free space
+ */
+final class WriteQueue {
+
+    enum Priority {
+        Control,        // commands
+        Telemetry       // periodic bulk data
+    }
+
+    enum Overflow {
+        Block,          // wait for free space
+        FailFast,       // IOException if full
+        DropOldest,     // drop oldest whole queued write, or the new write if none can be dropped
+        LatestValue     // replace queued write with same key, else as DropOldest
+    }
+
+    /**
+     * Block timed out or FailFast, the caller can retry later, connection is still usable
+     */
+    static final class FullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FullException() {
+            super("write queue full");
+        }
+    }
+
+    static final int NO_KEY = -1;
+    private static final int STARVATION_LIMIT = 8;
+
+    private static final class Packet {
+        byte[] data;
+        int offset;
+        int length;
+        byte[] own;         // reused across ring turns for coalesced packets
+        boolean open;       // coalesced packet that can take more data
+        boolean end;        // last packet of a write
+        int key;            // only set for LatestValue writes, which are one packet
+        long queuedNanos;
+        WriteHandle handle;
+    }
+
+    /**
+     * ring of sent + queued packets
+     */
+    private static final class Lane {
+        final Packet[] ring;
+        final int mask;
+        int first;      // oldest sent packet
+        int sent;       // sent, not yet acknowledged packets
+        int count;      // queued packets, following the sent packets
+        boolean pinned; // first queued packet returned by peek(), write not yet started
+        int skipped;    // packets sent from higher lanes while this lane was waiting
+        long delayNanos, delayMaxNanos, delayCount;
+
+        Lane(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1; // power of 2 for index masking
+            ring = new Packet[size];
+            mask = size-1;
+            for(int i=0; i<size; i++)
+                ring[i] = new Packet();
+        }
+
+        Packet get(int i) { return ring[(first+sent+i) & mask]; }  // i-th queued packet
+        Packet next() { return get(count); }
+        Packet last() { return get(count-1); }
+        boolean hasRoom(int packets) { return sent + count + packets <= ring.length; }
+
+        long holdNanos(long now, long deadlineNanos) {
+            Packet p = get(0);
+            if(!p.open || p.length == p.own.length)
+                return 0;
+            return Math.max(0, p.queuedNanos + deadlineNanos - now);
+        }
+
+        /**
+         * move dropped slot before the sent packets, where it becomes free space
+         */
+        boolean dropAt(int i) {
+            Packet p = get(i);
+            complete(p, true);
+            p.data = null;
+            p.open = false;
+            for(int j=sent+i; j>0; j--)
+                ring[(first+j) & mask] = ring[(first+j-1) & mask];
+            ring[first] = p;
+            first = (first+1) & mask;
+            count--;
+            return p.end;
+        }
+
+        void clear() {
+            for(int i=0; i<sent+count; i++) {
+                Packet p = ring[(first+i) & mask];
+                complete(p, true);
+                p.data = null;
+                p.open = false;
+            }
+            first = 0;
+            sent = 0;
+            count = 0;
+            pinned = false;
+            skipped = 0;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final byte[] sentLanes;   // lane of each sent packet, in send order
+    private int sentFirst, sentCount;
+    private int peeked = -1;          // lane of peeked packet
+    private int generation;           // incremented by clear(), to fail blocked writers
+    private byte[] slab = new byte[0];      // payload sized slices
+    private byte[] tailSlab = new byte[0];  // trailing slice of each write
+
+    private long coalescedFrames;           // frames merged into an existing packet = packets saved
+    private long coalescedPackets;
+    private long coalesceDelayNanos, coalesceDelayMaxNanos;
+    private long droppedWrites;
+
+    /**
+     * @param capacity packets per lane
+     */
+    WriteQueue(int capacity) {
+        lanes = new Lane[Priority.values().length];
+        for(int i=0; i<lanes.length; i++)
+            lanes[i] = new Lane(capacity);
+        sentLanes = new byte[lanes.length * lanes[0].ring.length];
+    }
+
+    boolean isEmpty() {
+        for(Lane lane : lanes)
+            if(lane.count > 0)
+                return false;
+        return true;
+    }
+    int size() {
+        int size = 0;
+        for(Lane lane : lanes)
+            size += lane.count;
+        return size;
+    }
+    int size(Priority priority) { return lanes[priority.ordinal()].count; }
+    int inFlight() { return sentCount; }
+
+    /**
+     * data is referenced until sent, so caller must not modify it afterwards.
+     * With Overflow.LatestValue the write must fit into one packet.
+     */
+    void add(byte[] data, int payloadSize, Priority priority, Overflow overflow, int key, WriteHandle handle, long timeoutMillis) throws IOException {
+        Lane lane = lanes[priority.ordinal()];
+        long now = System.nanoTime();
+        if(overflow == Overflow.LatestValue) {
+            if(data.length > payloadSize)
+                throw new IllegalArgumentException("keyed write larger than payload size");
+            for(int i = lane.pinned ? 1 : 0; i<lane.count && key != NO_KEY; i++) {
+                Packet p = lane.get(i);
+                if(p.key == key && p.offset == 0 && p.length == p.data.length) { // whole unsent write
+                    complete(p, true);
+                    p.data = data;
+                    p.offset = 0;
+                    p.length = data.length;
+                    p.handle = handle;
+                    droppedWrites++;
+                    return;
+                }
+            }
+        }
+        int packets = Math.max(1, (data.length+payloadSize-1)/payloadSize);
+        if(!reserve(lane, packets, overflow, timeoutMillis)) {
+            reject(handle);
+            return;
+        }
+        closeLast(lane);
+        for(int from=0; from<data.length || from==0; from+=payloadSize) {
+            Packet p = lane.next();
+            p.data = data;
+            p.offset = from;
+            p.length = Math.min(payloadSize, data.length-from);
+            p.end = from+payloadSize >= data.length;
+            p.key = overflow == Overflow.LatestValue ? key : NO_KEY;
+            p.handle = p.end ? handle : null;
+            p.queuedNanos = now;
+            lane.count++;
+        }
+    }
+
+    /**
+     * data is copied, writes not fitting into one packet are added as with add()
+     */
+    void addCoalesced(byte[] data, int payloadSize, long now, Priority priority, Overflow overflow, WriteHandle handle, long timeoutMillis) throws IOException {
+        if(data.length >= payloadSize) {
+            add(data, payloadSize, priority, overflow, NO_KEY, handle, timeoutMillis);
+            return;
+        }
+        Lane lane = lanes[priority.ordinal()];
+        if(lane.count > 0) {
+            Packet p = lane.last();
+            if(p.open && p.length + data.length <= p.own.length) {
+                System.arraycopy(data, 0, p.own, p.length, data.length);
+                p.length += data.length;
+                if(handle != null) {
+                    handle.next = p.handle;
+                    p.handle = handle;
+                }
+                coalescedFrames++;
+                return;
+            }
+        }
+        if(!reserve(lane, 1, overflow, timeoutMillis)) {
+            reject(handle);
+            return;
+        }
+        closeLast(lane);
+        Packet p = lane.next();
+        if(p.own == null || p.own.length != payloadSize)
+            p.own = new byte[payloadSize];
+        System.arraycopy(data, 0, p.own, 0, data.length);
+        p.data = p.own;
+        p.offset = 0;
+        p.length = data.length;
+        p.open = true;
+        p.end = true;
+        p.key = NO_KEY;
+        p.queuedNanos = now;
+        p.handle = handle;
+        lane.count++;
+    }
+
+    /**
+     * remaining time until a held back coalesced packet can be sent, 0 if nothing is held back
+     */
+    long holdNanos(long now, long deadlineNanos) {
+        long hold = Long.MAX_VALUE;
+        for(Lane lane : lanes)
+            if(lane.count > 0)
+                hold = Math.min(hold, lane.holdNanos(now, deadlineNanos));
+        return hold == Long.MAX_VALUE ? 0 : hold;
+    }
+
+    /**
+     * returned array is only valid until next peek(), as the slab is reused.
+     * BluetoothGatt.writeCharacteristic() copies it before that.
+     *
+     * @return null if empty or all lanes held back for coalescing
+     */
+    byte[] peek(long now, long deadlineNanos) {
+        int selected = -1;
+        for(int i=0; i<lanes.length; i++) {
+            Lane lane = lanes[i];
+            if(lane.count == 0 || lane.holdNanos(now, deadlineNanos) > 0)
+                continue;
+            if(selected < 0)
+                selected = i;
+            else if(lane.skipped >= STARVATION_LIMIT)
+                selected = i; // starvation guard, lowest waiting lane over limit wins
+        }
+        if(selected < 0)
+            return null;
+        Lane lane = lanes[selected];
+        Packet p = lane.get(0);
+        p.open = false; // content is copied now, later writes must not be merged into it
+        lane.pinned = true;
+        peeked = selected;
+        byte[] data;
+        if(p.data != p.own && p.offset == 0 && p.length == p.data.length) {
+            data = p.data;
+        } else {
+            // own slab of coalesced packets is refilled by later writes, so also copied
+            if(slab.length == p.length) {
+                data = slab;
+            } else if(tailSlab.length == p.length) {
+                data = tailSlab;
+            } else if(p.data != p.own && p.offset + p.length < p.data.length) {
+                data = slab = new byte[p.length]; // only reallocated when payload size changes
+            } else {
+                data = tailSlab = new byte[p.length];
+            }
+            System.arraycopy(p.data, p.offset, data, 0, p.length);
+        }
+        return data;
+    }
+
+    /**
+     * write of peeked packet was not started
+     */
+    void unpeek() {
+        if(peeked >= 0)
+            lanes[peeked].pinned = false;
+        peeked = -1;
+    }
+
+    void remove() {
+        if(peeked < 0)
+            return;
+        Lane lane = lanes[peeked];
+        Packet p = lane.get(0);
+        long delay = System.nanoTime() - p.queuedNanos;
+        if(p.data == p.own) {
+            coalescedPackets++;
+            coalesceDelayNanos += delay;
+            coalesceDelayMaxNanos = Math.max(coalesceDelayMaxNanos, delay);
+        }
+        lane.delayNanos += delay;
+        lane.delayMaxNanos = Math.max(lane.delayMaxNanos, delay);
+        lane.delayCount++;
+        p.data = null;
+        p.open = false;
+        lane.pinned = false;
+        lane.sent++;
+        lane.count--;
+        lane.skipped = 0;
+        for(int i=0; i<lanes.length; i++)
+            if(i != peeked && lanes[i].count > 0)
+                lanes[i].skipped++;
+        sentLanes[(sentFirst+sentCount) % sentLanes.length] = (byte)peeked;
+        sentCount++;
+        peeked = -1;
+    }
+
+    /**
+     * @return length of acknowledged packet, 0 if none in flight
+     */
+    int ack() {
+        if(sentCount == 0)
+            return 0;
+        Lane lane = lanes[sentLanes[sentFirst]];
+        sentFirst = (sentFirst+1) % sentLanes.length;
+        sentCount--;
+        Packet p = lane.ring[lane.first];
+        complete(p, false);
+        lane.first = (lane.first+1) & lane.mask;
+        lane.sent--;
+        notifyAll();
+        return p.length;
+    }
+
+    void clear() {
+        for(Lane lane : lanes)
+            lane.clear();
+        sentFirst = 0;
+        sentCount = 0;
+        peeked = -1;
+        generation++;
+        notifyAll();
+    }
+
+    /**
+     * after link loss: drop packets in flight, as their delivery is unknown, and all packets of other
+     * priorities. Queued writes of priority are kept, except the rest of a partially sent write.
+     * Blocked writers continue waiting.
+     */
+    void keepQueued(Priority priority) {
+        for(int i=0; i<lanes.length; i++) {
+            Lane lane = lanes[i];
+            if(i != priority.ordinal()) {
+                lane.clear();
+                continue;
+            }
+            boolean partial = lane.sent > 0 && !lane.ring[(lane.first+lane.sent-1) & lane.mask].end;
+            for(; lane.sent > 0; lane.sent--) {
+                Packet p = lane.ring[lane.first];
+                if(p.end)
+                    droppedWrites++;
+                complete(p, true);
+                lane.first = (lane.first+1) & lane.mask;
+            }
+            lane.pinned = false;
+            if(partial && lane.count > 0) {
+                boolean end = false;
+                while(!end && lane.count > 0)
+                    end = lane.dropAt(0);
+                droppedWrites++;
+            }
+        }
+        sentFirst = 0;
+        sentCount = 0;
+        peeked = -1;
+        notifyAll();
+    }
+
+    long getCoalescedFrames() { return coalescedFrames; }
+    long getCoalesceDelayAvgNanos() { return coalescedPackets == 0 ? 0 : coalesceDelayNanos / coalescedPackets; }
+    long getCoalesceDelayMaxNanos() { return coalesceDelayMaxNanos; }
+    long getDroppedWrites() { return droppedWrites; }
+
+    /**
+     * time from add() to write start
+     */
+    long getQueueDelayAvgNanos(Priority priority) {
+        Lane lane = lanes[priority.ordinal()];
+        return lane.delayCount == 0 ? 0 : lane.delayNanos / lane.delayCount;
+    }
+    long getQueueDelayMaxNanos(Priority priority) { return lanes[priority.ordinal()].delayMaxNanos; }
+
+    /**
+     * DropOldest and LatestValue never fail the caller. If only packets in flight or the rest
+     * of a partly sent write are queued, nothing can be dropped without truncating a frame
+     * on the peer, so the new write is rejected instead, like a dropped write
+     * @return false if the new write has to be rejected
+     */
+    private boolean reserve(Lane lane, int packets, Overflow overflow, long timeoutMillis) throws IOException {
+        if(packets > lane.ring.length)
+            throw new IOException("write larger than queue");
+        long end = System.currentTimeMillis() + timeoutMillis;
+        int gen = generation;
+        while(!lane.hasRoom(packets)) {
+            switch (overflow) {
+                case Block:
+                    long remaining = end - System.currentTimeMillis();
+                    if(remaining <= 0)
+                        throw new FullException();
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("write interrupted");
+                    }
+                    if(gen != generation)
+                        throw new IOException("not connected");
+                    break;
+                case FailFast:
+                    throw new FullException();
+                case DropOldest:
+                case LatestValue:
+                    int whole = firstWholeWrite(lane);
+                    if(whole >= lane.count || lane.sent + whole + packets > lane.ring.length)
+                        return false; // would not fit even after dropping all whole writes
+                    dropWriteAt(lane, whole);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private void reject(WriteHandle handle) {
+        if(handle != null)
+            handle.complete(true);
+        droppedWrites++;
+    }
+
+    /**
+     * the rest of a write that is partly sent or pinned by peek() is not dropped, as in keepQueued(),
+     * so the peer never gets a truncated frame
+     * @return index of the first queued packet starting a write, count if none
+     */
+    private static int firstWholeWrite(Lane lane) {
+        int i = 0;
+        boolean partial = lane.pinned || (lane.sent > 0 && !lane.ring[(lane.first+lane.sent-1) & lane.mask].end);
+        if(partial) {
+            while(i < lane.count && !lane.get(i).end)
+                i++;
+            i++; // first packet after the partly sent write
+        }
+        return Math.min(i, lane.count);
+    }
+
+    /**
+     * drop queued packets from i up to the end of that write
+     */
+    private void dropWriteAt(Lane lane, int i) {
+        boolean end;
+        do {
+            end = lane.dropAt(i);
+        } while(!end && i < lane.count);
+        droppedWrites++;
+    }
+
+    private static void closeLast(Lane lane) {
+        if(lane.count > 0)
+            lane.last().open = false;
+    }
+
+    private static void complete(Packet p, boolean dropped) {
+        WriteHandle h = p.handle;
+        p.handle = null;
+        while(h != null) {
+            WriteHandle next = h.next;
+            h.next = null;
+            h.complete(dropped);
+            h = next;
+        }
+    }
+}